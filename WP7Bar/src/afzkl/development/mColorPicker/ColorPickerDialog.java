@@ -26,6 +26,8 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.graphics.PixelFormat;
 import android.graphics.Color;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.LinearLayout;
@@ -42,10 +44,29 @@ public class ColorPickerDialog extends AlertDialog implements
 	private ColorPanelView mNewColor;
 
 	private OnColorChangedListener mListener;
+	private OnColorChangedListener mPreviewListener;
+
+	/**
+	 * Default minimum time, in milliseconds, between
+	 * two calls to the preview listener.
+	 */
+	public static final long DEFAULT_PREVIEW_INTERVAL = 100;
+
+	private final Handler mHandler = new Handler();
+	private long mPreviewInterval = DEFAULT_PREVIEW_INTERVAL;
+	private long mLastPreview = 0;
+	private boolean mPreviewPending = false;
+
+	private int mInitialColor;
+	private int mColor;
+	private int mPreviewColor;
 
 	public ColorPickerDialog(Context context, int initialColor) {
 		super(context);
 
+		mInitialColor = initialColor;
+		mColor = initialColor;
+		mPreviewColor = initialColor;
 		init(initialColor);
 	}
 
@@ -105,23 +126,100 @@ public class ColorPickerDialog extends AlertDialog implements
 	}
 
 	/**
-	 * Set the listener... ah, you know what it is for.
+	 * Set the listener that is notified of the final color. It is
+	 * called once when the dialog is dismissed, and only if the
+	 * color differs from the one the dialog was opened with. The
+	 * color is kept in memory while the user is dragging.
 	 */
 	public void setOnColorChangedListener(OnColorChangedListener mListener)
 	{
 		this.mListener = mListener;
 	}
 
+	/**
+	 * Set a listener for a live preview of the color while the
+	 * user is dragging. Calls are rate limited to at most one
+	 * every {@link #DEFAULT_PREVIEW_INTERVAL} milliseconds, the
+	 * latest color is always delivered.
+	 */
+	public void setOnColorPreviewListener(OnColorChangedListener mPreviewListener)
+	{
+		setOnColorPreviewListener(mPreviewListener, DEFAULT_PREVIEW_INTERVAL);
+	}
+
+	/**
+	 * @see #setOnColorPreviewListener(OnColorChangedListener)
+	 *
+	 * @param interval Minimum time in milliseconds between previews.
+	 */
+	public void setOnColorPreviewListener(OnColorChangedListener mPreviewListener, long interval)
+	{
+		this.mPreviewListener = mPreviewListener;
+		mPreviewInterval = Math.max(0, interval);
+	}
+
 	@Override
 	public void onColorChanged(int color) {
 
 		if (mNewColor != null)
 			mNewColor.setColor(color);
 
-		if (mListener != null) {
-			mListener.onColorChanged(color);
+		// Keep the color in memory, it is only
+		// handed to mListener once on dismiss.
+		mColor = color;
+		schedulePreview();
+	}
+
+	/**
+	 * Post the current color to the preview listener, no
+	 * more often than {@link #mPreviewInterval} allows.
+	 */
+	private void schedulePreview() {
+		if (mPreviewListener == null || mPreviewPending) return;
+
+		final long mDelay = mLastPreview + mPreviewInterval
+			- SystemClock.uptimeMillis();
+
+		if (mDelay <= 0) {
+			mPreview.run();
+		}
+		else {
+			mPreviewPending = true;
+			mHandler.postDelayed(mPreview, mDelay);
 		}
+	}
+
+	private final Runnable mPreview = new Runnable() {
+		@Override
+		public void run() {
+			mPreviewPending = false;
+			mLastPreview = SystemClock.uptimeMillis();
+			mPreviewColor = mColor;
 
+			if (mPreviewListener != null)
+				mPreviewListener.onColorChanged(mColor);
+		}
+	};
+
+	@Override
+	public void dismiss() {
+		mHandler.removeCallbacks(mPreview);
+		mPreviewPending = false;
+
+		super.dismiss();
+
+		// Persist the color once, now that the user is done.
+		if (mColor != mInitialColor) {
+			mInitialColor = mColor;
+			if (mListener != null)
+				mListener.onColorChanged(mColor);
+		}
+		// Nothing to persist, but the last preview may have
+		// left a different color showing, so put it back.
+		else if (mPreviewColor != mInitialColor && mPreviewListener != null) {
+			mPreviewListener.onColorChanged(mInitialColor);
+		}
+		mPreviewColor = mInitialColor;
 	}
 
 	public void setAlphaSliderVisible(boolean visible) {
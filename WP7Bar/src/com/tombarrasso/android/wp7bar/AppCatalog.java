@@ -0,0 +1,529 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * AppCatalog.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Android Packages
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+// Java Packages
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// App Packages
+import com.tombarrasso.android.wp7bar.Preferences.AppInfo;
+import com.tombarrasso.android.wp7bar.Preferences.AppComparator;
+
+/**
+ * Persistent catalog of the applications with a launcher icon.
+ * The label, package name, launcher {@link Activity} and version
+ * of each application are kept in a small binary file so that
+ * opening {@link BlacklistActivity} on a cold process reads one
+ * file instead of querying {@link PackageManager} for every package.
+ * The catalog is kept up to date one package at a time by
+ * {@link PackageReceiver}, and by comparing version codes in {@link sync}.
+ * Entries are stored in sorted order along with the locale they were
+ * sorted for, so they are only sorted again if the locale changes.<br /><br />
+ * Listeners are told whenever an entry changes, so a list on screen
+ * is never stale. The entries in memory can be released with
+ * {@link trimMemory}, as they are read back from the file as needed.
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-05-2011
+ * @version		1.0
+ * @category	Static Utility
+ */
+
+public final class AppCatalog
+{
+	public static final String TAG = AppCatalog.class.getSimpleName(),
+							   PACKAGE = AppCatalog.class.getPackage().getName();
+
+	// Name of the file in which the catalog is stored.
+	private static final String FILE_NAME = "apps.bin";
+
+	// Header of the file, bump the version if the format changes.
+	private static final int MAGIC = 0x53424150,
+							 FORMAT_VERSION = 2;
+
+	private static AppCatalog mInstance;
+
+	private final Context mContext;
+	private final File mFile;
+	private final AppComparator mComparator = new AppComparator();
+
+	// Loaded lazily, sorted alphabetically.
+	private ArrayList<AppInfo> mApps;
+
+	// Locale that mApps is sorted for.
+	private String mLocale;
+
+	// Held while building the catalog from scratch, instead of
+	// the catalog itself, so it can still be read and released.
+	private final Object mBuildLock = new Object();
+
+	// Number of changes, and who to tell. Neither takes the
+	// catalog's lock so they can be used from the UI thread.
+	private final AtomicInteger mGeneration = new AtomicInteger();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final CopyOnWriteArrayList<OnCatalogChangedListener> mListeners =
+		new CopyOnWriteArrayList<OnCatalogChangedListener>();
+
+	/**
+	 * Interface to be notified, on the UI thread, when
+	 * an application is added, removed or updated.
+	 */
+	public static interface OnCatalogChangedListener
+	{
+		public void onCatalogChanged(AppCatalog mCatalog);
+	}
+
+	private AppCatalog(Context mContext)
+	{
+		this.mContext = mContext.getApplicationContext();
+		mFile = new File(this.mContext.getFilesDir(), FILE_NAME);
+	}
+
+	/**
+	 * Lazily-load an instance of {@link AppCatalog} statically
+	 * in a Singleton fashion.
+	 */
+	public static final synchronized AppCatalog getInstance(Context mContext)
+	{
+		if (mInstance == null)
+			mInstance = new AppCatalog(mContext);
+
+		return mInstance;
+	}
+
+	/**
+	 * @return A copy of all applications, sorted alphabetically.
+	 * On the first call this reads the catalog file, or builds it
+	 * from {@link PackageManager} if it does not exist yet. This
+	 * may block and should not be called on the UI thread.
+	 */
+	public final ArrayList<AppInfo> getApps()
+	{
+		return getApps(null);
+	}
+
+	/**
+	 * @see #getApps()
+	 *
+	 * The listener receives sorted chunks as they become available.
+	 * When the catalog is read from its file that is a single chunk,
+	 * when it has to be built it is one chunk per group of labels.
+	 * Building only holds {@link mBuildLock}, so the catalog can be
+	 * read, released and listened to meanwhile. Null is returned if
+	 * building failed.
+	 */
+	public final ArrayList<AppInfo> getApps(
+		Preferences.OnAppsLoadedListener mListener)
+	{
+		synchronized (mBuildLock)
+		{
+			final ArrayList<AppInfo> mCopy = getLoaded();
+			if (mCopy != null)
+			{
+				if (mListener != null)
+					mListener.onAppsLoaded(new ArrayList<AppInfo>(mCopy));
+				return mCopy;
+			}
+
+			// No usable file, build it from scratch.
+			final ArrayList<AppInfo> mBuilt =
+				Preferences.getInstance(mContext).getApps(true, mListener);
+			if (mBuilt == null) return null;
+
+			synchronized (this)
+			{
+				mApps = mBuilt;
+				mLocale = Locale.getDefault().toString();
+				save();
+				return new ArrayList<AppInfo>(mApps);
+			}
+		}
+	}
+
+	/**
+	 * @return True if the catalog is in memory or has a file,
+	 * without reading it. If not there is nothing to update.
+	 */
+	public final synchronized boolean exists()
+	{
+		return (mApps != null || mFile.exists());
+	}
+
+	/**
+	 * @return A copy of the entries if they are in memory or
+	 * could be read from the file, otherwise null.
+	 */
+	private final synchronized ArrayList<AppInfo> getLoaded()
+	{
+		return (ensureLoaded()) ? new ArrayList<AppInfo>(mApps) : null;
+	}
+
+	/**
+	 * @return True if the entries are in memory or could be read.
+	 */
+	private final synchronized boolean isLoaded()
+	{
+		return ensureLoaded();
+	}
+
+	/**
+	 * Updates the entry for a single package, adding it if it is
+	 * new or removing it if it no longer has a launcher icon.
+	 * Nothing is done if the catalog was never built, it will
+	 * include the package when it is.
+	 */
+	public final void update(String packageName)
+	{
+		// Waits for a build in progress, so it is not missed.
+		synchronized (mBuildLock)
+		{
+			if (!isLoaded()) return;
+
+			final AppInfo mApp = Preferences.getInstance(mContext).getApp(packageName);
+			synchronized (this)
+			{
+				if (!ensureLoaded()) return;
+				final boolean mChanged = removeEntry(packageName) | (mApp != null);
+				if (mApp != null) insertEntry(mApp);
+				if (mChanged) changed();
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry for a single package.
+	 */
+	public final void remove(String packageName)
+	{
+		synchronized (mBuildLock)
+		{
+			synchronized (this)
+			{
+				if (!ensureLoaded()) return;
+				if (removeEntry(packageName)) changed();
+			}
+		}
+	}
+
+	/**
+	 * Compares the version code of every installed package against
+	 * the catalog and only updates entries that have changed. Packages
+	 * that are no longer installed, or no longer have a launcher icon,
+	 * are dropped. New packages are found with a single launcher query. This catches changes
+	 * that happened while no broadcast could be received. The catalog
+	 * is only locked to compare and apply, not while querying.
+	 */
+	public final void sync()
+	{
+		synchronized (mBuildLock)
+		{
+			syncLocked();
+		}
+	}
+
+	private final void syncLocked()
+	{
+		// Nothing to compare against, it will be built when needed.
+		final ArrayList<AppInfo> mCurrent = getLoaded();
+		if (mCurrent == null) return;
+
+		final PackageManager mPackageManager = mContext.getPackageManager();
+		final List<PackageInfo> mPackages = mPackageManager.getInstalledPackages(0);
+		final HashMap<String, Integer> mVersions =
+			new HashMap<String, Integer>(mPackages.size());
+		for (PackageInfo mPackage : mPackages)
+			mVersions.put(mPackage.packageName, mPackage.versionCode);
+
+		// Packages with a launcher icon, in one query.
+		final Preferences mPrefs = Preferences.getInstance(mContext);
+		final HashSet<String> mLaunchers = mPrefs.getLauncherPackages();
+
+		final HashMap<String, AppInfo> mKnown =
+			new HashMap<String, AppInfo>(mCurrent.size());
+		for (AppInfo mApp : mCurrent)
+			mKnown.put(mApp.getPackageName(), mApp);
+
+		// Packages to drop, and entries to add in their place.
+		final ArrayList<String> mRemoved = new ArrayList<String>();
+		final ArrayList<AppInfo> mAdded = new ArrayList<AppInfo>();
+
+		// Drop removed packages and refresh upgraded ones.
+		for (AppInfo mApp : mCurrent)
+		{
+			final Integer mVersion = mVersions.get(mApp.getPackageName());
+			if (mVersion == null || !mLaunchers.contains(mApp.getPackageName()))
+			{
+				mRemoved.add(mApp.getPackageName());
+			}
+			else if (mVersion.intValue() != mApp.getVersionCode())
+			{
+				mRemoved.add(mApp.getPackageName());
+				final AppInfo mUpdated = mPrefs.getApp(mApp.getPackageName());
+				if (mUpdated != null) mAdded.add(mUpdated);
+			}
+		}
+
+		// Add new packages that have a launcher icon, only
+		// those are looked up rather than every package.
+		for (String mPackage : mLaunchers)
+		{
+			if (mKnown.containsKey(mPackage)) continue;
+			final AppInfo mApp = mPrefs.getApp(mPackage);
+			if (mApp != null) mAdded.add(mApp);
+		}
+
+		if (mRemoved.isEmpty() && mAdded.isEmpty()) return;
+
+		synchronized (this)
+		{
+			if (!ensureLoaded()) return;
+			for (String mPackage : mRemoved)
+				removeEntry(mPackage);
+			for (AppInfo mApp : mAdded)
+			{
+				removeEntry(mApp.getPackageName());
+				insertEntry(mApp);
+			}
+			changed();
+		}
+	}
+
+	public final void registerOnCatalogChangedListener(
+		OnCatalogChangedListener mListener)
+	{
+		mListeners.addIfAbsent(mListener);
+	}
+
+	public final void unregisterOnCatalogChangedListener(
+		OnCatalogChangedListener mListener)
+	{
+		mListeners.remove(mListener);
+	}
+
+	/**
+	 * @return A number that changes whenever an entry does, so a
+	 * copy of the list can be checked for being stale, ie. when an
+	 * {@link Activity} resumes after missing a change.
+	 */
+	public final int getGeneration()
+	{
+		return mGeneration.get();
+	}
+
+	/**
+	 * Releases every entry held in memory. They are read
+	 * back from the file when next needed. Call when memory is low.
+	 */
+	public final synchronized void trimMemory()
+	{
+		mApps = null;
+	}
+
+	/**
+	 * Save the catalog after an entry changed and notify listeners.
+	 */
+	private final void changed()
+	{
+		save();
+		mGeneration.incrementAndGet();
+
+		if (mListeners.isEmpty()) return;
+		mHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (OnCatalogChangedListener mListener : mListeners)
+					mListener.onCatalogChanged(AppCatalog.this);
+			}
+		});
+	}
+
+	/**
+	 * Make sure {@link mApps} is available, reading the file if
+	 * necessary. Building it is left to {@link getApps}, which
+	 * does so without holding the catalog's lock.
+	 *
+	 * @return False if there is no catalog yet.
+	 */
+	private final boolean ensureLoaded()
+	{
+		if (mApps == null && !read()) return false;
+
+		ensureSorted();
+		return true;
+	}
+
+	/**
+	 * Sort {@link mApps} again if the locale has changed
+	 * since it was sorted, and save the new order.
+	 */
+	private final void ensureSorted()
+	{
+		final String mCurrent = Locale.getDefault().toString();
+		if (mCurrent.equals(mLocale)) return;
+
+		Collections.sort(mApps, mComparator);
+		mLocale = mCurrent;
+		save();
+	}
+
+	/**
+	 * Inserts an entry keeping {@link mApps} sorted.
+	 */
+	private final void insertEntry(AppInfo mApp)
+	{
+		int mIndex = Collections.binarySearch(mApps, mApp, mComparator);
+		if (mIndex < 0) mIndex = -(mIndex + 1);
+		mApps.add(mIndex, mApp);
+	}
+
+	/**
+	 * @return True if an entry for the package was removed.
+	 */
+	private final boolean removeEntry(String packageName)
+	{
+		for (int i = 0, e = mApps.size(); i < e; ++i)
+		{
+			if (mApps.get(i).getPackageName().equals(packageName))
+			{
+				mApps.remove(i);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return True if the catalog was read from its file.
+	 */
+	private final boolean read()
+	{
+		if (!mFile.exists()) return false;
+
+		DataInputStream mIn = null;
+		try
+		{
+			mIn = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(mFile)));
+
+			if (mIn.readInt() != MAGIC) return false;
+
+			// The first format was not sorted for a locale.
+			final int mVersion = mIn.readInt();
+			if (mVersion != FORMAT_VERSION && mVersion != 1)
+				return false;
+			final String mSortedFor = (mVersion >= 2) ? mIn.readUTF() : null;
+
+			final int mCount = mIn.readInt();
+			final ArrayList<AppInfo> mRead = new ArrayList<AppInfo>(mCount);
+			for (int i = 0; i < mCount; ++i)
+			{
+				final String mName = mIn.readUTF();
+				final String mPackageName = mIn.readUTF();
+				final String mActivityName = mIn.readUTF();
+				final String mVersionName = (mIn.readBoolean()) ? mIn.readUTF() : null;
+				final int mVersionCode = mIn.readInt();
+				mRead.add(new AppInfo(mName, mPackageName,
+					mActivityName, mVersionName, mVersionCode));
+			}
+
+			mApps = mRead;
+			mLocale = mSortedFor;
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Could not read the application catalog.", e);
+			return false;
+		}
+		finally
+		{
+			if (mIn != null) try { mIn.close(); } catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Writes the catalog to a temporary file and then moves
+	 * it in place so a partial write is never read back.
+	 */
+	private final void save()
+	{
+		final File mTemp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream mOut = null;
+		try
+		{
+			mOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(mTemp)));
+
+			mOut.writeInt(MAGIC);
+			mOut.writeInt(FORMAT_VERSION);
+			mOut.writeUTF((mLocale == null) ? "" : mLocale);
+			mOut.writeInt(mApps.size());
+			for (AppInfo mApp : mApps)
+			{
+				mOut.writeUTF(mApp.getName());
+				mOut.writeUTF(mApp.getPackageName());
+				mOut.writeUTF(mApp.getActivityName());
+				mOut.writeBoolean(mApp.getVersionName() != null);
+				if (mApp.getVersionName() != null)
+					mOut.writeUTF(mApp.getVersionName());
+				mOut.writeInt(mApp.getVersionCode());
+			}
+
+			mOut.close();
+			mOut = null;
+
+			if (!mTemp.renameTo(mFile))
+				Log.w(TAG, "Could not replace the application catalog.");
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Could not write the application catalog.", e);
+		}
+		finally
+		{
+			if (mOut != null) try { mOut.close(); } catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * AppIndex.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Java Packages
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// App Packages
+import com.tombarrasso.android.wp7bar.Preferences.AppInfo;
+
+/**
+ * Index over a sorted list of applications, built once when the
+ * list has loaded. It holds the first position of every initial
+ * letter, for fast scrolling to a letter, and a prefix trie over the
+ * words of every label so that filtering as the user types only
+ * walks as many nodes as there are characters typed. Initials
+ * are grouped with {@link CollationKey}s so that, ie. &Eacute; is
+ * found under E.
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-12-2011
+ * @version		1.0
+ * @category	Data Structure
+ */
+
+public final class AppIndex
+{
+	public static final String TAG = AppIndex.class.getSimpleName(),
+							   PACKAGE = AppIndex.class.getPackage().getName();
+
+	// Section for labels that do not start with a letter.
+	public static final String OTHER = "#";
+
+	// Prefixes longer than this are matched by their start alone.
+	private static final int MAX_DEPTH = 24;
+
+	private static final int[] EMPTY = new int[0];
+
+	private final Collator mCollator = Collator.getInstance();
+	private final String[] mLetters = new String[26];
+	private final CollationKey[] mLetterKeys = new CollationKey[26];
+
+	private final String[] mSections;
+	private final int[] mSectionPositions;
+	private final int[] mPositionSections;
+	private final Node mRoot = new Node();
+
+	/**
+	 * Build the index for the given list, which must not change
+	 * while the index is in use.
+	 */
+	public AppIndex(List<AppInfo> mApps)
+	{
+		mCollator.setStrength(Collator.PRIMARY);
+		for (int i = 0; i < mLetters.length; ++i)
+		{
+			mLetters[i] = String.valueOf((char) ('A' + i));
+			mLetterKeys[i] = mCollator.getCollationKey(mLetters[i]);
+		}
+
+		final int mCount = mApps.size();
+		final ArrayList<String> mLabels = new ArrayList<String>();
+		final ArrayList<Integer> mPositions = new ArrayList<Integer>();
+		mPositionSections = new int[mCount];
+
+		for (int i = 0; i < mCount; ++i)
+		{
+			final String mName = mApps.get(i).getName();
+
+			// Sections in order of their first position.
+			final String mLabel = getSectionLabel(mName);
+			int mSection = mLabels.indexOf(mLabel);
+			if (mSection < 0)
+			{
+				mSection = mLabels.size();
+				mLabels.add(mLabel);
+				mPositions.add(i);
+			}
+			mPositionSections[i] = mSection;
+
+			insert(mName, i);
+		}
+
+		mSections = mLabels.toArray(new String[mLabels.size()]);
+		mSectionPositions = new int[mPositions.size()];
+		for (int i = 0; i < mSectionPositions.length; ++i)
+			mSectionPositions[i] = mPositions.get(i);
+
+		mRoot.finish();
+	}
+
+	/**
+	 * @return The letter a label is listed under.
+	 */
+	public final String getSectionLabel(String mName)
+	{
+		if (mName == null || mName.length() == 0) return OTHER;
+
+		final char mInitial = mName.charAt(0);
+		if (!Character.isLetter(mInitial)) return OTHER;
+
+		final CollationKey mKey = mCollator.getCollationKey(String.valueOf(mInitial));
+		for (int i = 0; i < mLetterKeys.length; ++i)
+			if (mKey.compareTo(mLetterKeys[i]) == 0)
+				return mLetters[i];
+
+		return String.valueOf(Character.toUpperCase(mInitial));
+	}
+
+	public final String[] getSections()
+	{
+		return mSections;
+	}
+
+	public final int getPositionForSection(int mSection)
+	{
+		if (mSections.length == 0) return 0;
+		mSection = Math.max(0, Math.min(mSection, mSections.length - 1));
+		return mSectionPositions[mSection];
+	}
+
+	public final int getSectionForPosition(int mPosition)
+	{
+		if (mPositionSections.length == 0) return 0;
+		mPosition = Math.max(0, Math.min(mPosition, mPositionSections.length - 1));
+		return mPositionSections[mPosition];
+	}
+
+	/**
+	 * @return The positions, ascending, of every label with a word
+	 * starting with the prefix, or null if the prefix is empty and
+	 * everything matches. The returned array must not be modified.
+	 */
+	public final int[] search(CharSequence mPrefix)
+	{
+		if (mPrefix == null) return null;
+		final String mQuery = mPrefix.toString().trim().toLowerCase(Locale.getDefault());
+		if (mQuery.length() == 0) return null;
+
+		Node mNode = mRoot;
+		for (int i = 0, e = Math.min(mQuery.length(), MAX_DEPTH); i < e; ++i)
+		{
+			mNode = mNode.get(mQuery.charAt(i));
+			if (mNode == null) return EMPTY;
+		}
+
+		return mNode.mPositions;
+	}
+
+	/**
+	 * Insert the rest of the label from the start of every word,
+	 * so a prefix may match from any word onwards.
+	 */
+	private final void insert(String mName, int mPosition)
+	{
+		final String mLower = mName.toLowerCase(Locale.getDefault());
+		final int mLength = mLower.length();
+
+		for (int i = 0; i < mLength; ++i)
+		{
+			final boolean mWordStart = Character.isLetterOrDigit(mLower.charAt(i)) &&
+				(i == 0 || !Character.isLetterOrDigit(mLower.charAt(i - 1)));
+			if (!mWordStart) continue;
+
+			Node mNode = mRoot;
+			for (int j = i, e = Math.min(mLength, i + MAX_DEPTH); j < e; ++j)
+			{
+				mNode = mNode.put(mLower.charAt(j));
+				mNode.add(mPosition);
+			}
+		}
+	}
+
+	/**
+	 * A node of the trie, with the sorted positions of every
+	 * label that matches the prefix leading to it.
+	 */
+	private static final class Node
+	{
+		private char[] mKeys = new char[0];
+		private Node[] mChildren = new Node[0];
+		private int[] mPositions = new int[2];
+		private int mCount;
+
+		public final Node get(char mKey)
+		{
+			final int mIndex = Arrays.binarySearch(mKeys, mKey);
+			return (mIndex < 0) ? null : mChildren[mIndex];
+		}
+
+		public final Node put(char mKey)
+		{
+			int mIndex = Arrays.binarySearch(mKeys, mKey);
+			if (mIndex >= 0) return mChildren[mIndex];
+
+			mIndex = -(mIndex + 1);
+			final char[] mNewKeys = new char[mKeys.length + 1];
+			final Node[] mNewChildren = new Node[mChildren.length + 1];
+			System.arraycopy(mKeys, 0, mNewKeys, 0, mIndex);
+			System.arraycopy(mChildren, 0, mNewChildren, 0, mIndex);
+			System.arraycopy(mKeys, mIndex, mNewKeys, mIndex + 1, mKeys.length - mIndex);
+			System.arraycopy(mChildren, mIndex, mNewChildren, mIndex + 1, mChildren.length - mIndex);
+			mNewKeys[mIndex] = mKey;
+			mNewChildren[mIndex] = new Node();
+			mKeys = mNewKeys;
+			mChildren = mNewChildren;
+			return mChildren[mIndex];
+		}
+
+		/**
+		 * Positions are added in ascending order, a label with
+		 * two words matching the same prefix is only added once.
+		 */
+		public final void add(int mPosition)
+		{
+			if (mCount > 0 && mPositions[mCount - 1] == mPosition) return;
+			if (mCount == mPositions.length)
+			{
+				final int[] mGrown = new int[mCount * 2];
+				System.arraycopy(mPositions, 0, mGrown, 0, mCount);
+				mPositions = mGrown;
+			}
+			mPositions[mCount++] = mPosition;
+		}
+
+		/**
+		 * Trim every array to size once building is done.
+		 */
+		public final void finish()
+		{
+			if (mPositions.length != mCount)
+			{
+				final int[] mTrimmed = new int[mCount];
+				System.arraycopy(mPositions, 0, mTrimmed, 0, mCount);
+				mPositions = mTrimmed;
+			}
+			for (Node mChild : mChildren)
+				mChild.finish();
+		}
+	}
+}
@@ -41,12 +41,15 @@ import android.util.DisplayMetrics;
 import android.content.ComponentName;
 import android.view.View.OnLongClickListener;
 import android.content.BroadcastReceiver;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.accessibilityservice.AccessibilityService;
 import android.accessibilityservice.AccessibilityServiceInfo;
 import android.util.SparseArray;
 import android.view.accessibility.AccessibilityEvent;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
 
 // UI Packages
 import com.tombarrasso.android.wp7ui.statusbar.*;
@@ -56,6 +59,9 @@ import com.tombarrasso.android.wp7ui.extras.MonitorActivityThread;
 // Java Packages
 import java.util.List;
 import java.util.ArrayList;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
@@ -85,14 +91,25 @@ import java.lang.reflect.Method;
  *	<li>Fixed a {@link NullPointerException} in {@link ScreenReceiver}.</li>
  *	<li>Added (then commented out) {@link AccessibilityService} stuff.</li>
  * </ul>
+ * <b>Version 1.03</b>
+ * <ul>
+ *	<li>Settings are read through {@link SettingsChannel} and changes are applied to the running status bar.</li>
+ *	<li>No longer final so that {@link LocalBarService} can host it in the application's process.</li>
+ * </ul>
+ * <b>Version 1.04</b>
+ * <ul>
+ *	<li>Icons are shown or hidden in the running status bar through {@link IStatusBarService.setIconMask}.</li>
+ *	<li>Does not start a second status bar, or accept binds, while {@link LocalBarService} is in use.</li>
+ *	<li>{@link ACTION_ENABLED} carries the pid and start time of the process hosting the status bar.</li>
+ * </ul>
  *
  * @author		Thomas James Barrasso <contact @ tombarrasso.com>
  * @since		10-28-2011
- * @version		1.02
+ * @version		1.04
  * @category	{@link Service}
  */
 
-public final class BarService extends Service
+public class BarService extends Service
 {
 	public static final String TAG = BarService.class.getSimpleName(),
 							   	  PACKAGE = BarService.class.getPackage().getName();
@@ -104,6 +121,14 @@ public final class BarService extends Service
 	public static final String ACTION_ENABLED = PACKAGE + ".intent.action.ENABLED",
 							   ACTION_DISABLED = PACKAGE + ".intent.action.DISABLED";
 
+	/**
+	 * Extras of {@link ACTION_ENABLED}, the pid of the process
+	 * hosting the status bar and its start time, so that a stale
+	 * sticky broadcast can be told apart from a live one.
+	 */
+	public static final String EXTRA_PID = PACKAGE + ".intent.extra.PID",
+							   EXTRA_START_TIME = PACKAGE + ".intent.extra.START_TIME";
+
 	// Intents for enabled/ disabled actions.
 	private static final Intent ENABLED_INTENT = new Intent(ACTION_ENABLED),
 								DISABLED_INTENT = new Intent(ACTION_DISABLED);
@@ -150,6 +175,18 @@ public final class BarService extends Service
 		mLockFilter.addAction(ACTION_RIPPLELOCK_UNLOCKED);
 	};
 
+	// Delay in which icon changes are gathered into one layout.
+	private static final int ICON_DELAY = 100;
+
+	private final Handler mHandler = new Handler();
+
+	// Icons last applied to the status bar, and those to apply.
+	private int mIconMask = -1;
+	private volatile int mPendingIconMask = -1;
+
+	// Visibility of the icons the mask hid, by bit, to restore.
+	private final SparseArray<Integer> mMaskedIcons = new SparseArray<Integer>();
+
 	private final ScreenReceiver mScreenReceiver = new ScreenReceiver();
 	private final PresenceReceiver mPresenceReceiver = new PresenceReceiver();
 
@@ -283,8 +320,112 @@ public final class BarService extends Service
 		{
 			mBarView.setBackgroundColor(mPrefs.getBackgroundColor());
 		}
+
+		/**
+		 * Sets the background color without saving it.
+		 */
+		public void previewBackgroundColor(int color)
+		{
+			if (mBarView != null)
+				mBarView.setBackgroundColor(color);
+		}
+
+		/**
+		 * Sets the icon color without saving it.
+		 */
+		public void previewIconColor(int color)
+		{
+			if (mBarView != null)
+				mBarView.setAllColors(color);
+		}
+
+		/**
+		 * Shows and hides icons, waiting briefly so that
+		 * several toggles are applied in a single layout.
+		 */
+		public void setIconMask(int mask)
+		{
+			mPendingIconMask = mask;
+			mHandler.removeCallbacks(mApplyIconMask);
+			mHandler.postDelayed(mApplyIconMask, ICON_DELAY);
+		}
     };
 
+	/**
+	 * Applies the latest icon mask on the UI thread.
+	 */
+	private final Runnable mApplyIconMask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			applyIconMask(mPendingIconMask);
+		}
+	};
+
+	/**
+	 * Show or hide every icon whose bit differs from the mask
+	 * last applied. The others are left alone, since some icons
+	 * hide themselves, ie. {@link RoamingView} when not roaming.
+	 * For the same reason showing an icon only undoes the hiding
+	 * done here, it goes back to the visibility it had before.
+	 */
+	private final void applyIconMask(int mMask)
+	{
+		if (mBarView == null || mMask == mIconMask) return;
+
+		final ArrayList<String> mIconKeys = Preferences.getIconKeys();
+		for (int i = 0, e = mBarView.getChildCount(); i < e; ++i)
+		{
+			final View mChild = mBarView.getChildAt(i);
+			final int mIndex = mIconKeys.indexOf(getIconKey(mChild));
+			if (mIndex < 0) continue;
+
+			final int mBit = 1 << mIndex;
+			if ((mMask & mBit) == (mIconMask & mBit)) continue;
+
+			if ((mMask & mBit) == 0)
+			{
+				// Already hidden by itself, nothing to undo later.
+				if (mChild.getVisibility() == View.GONE) continue;
+				mMaskedIcons.put(mIndex, mChild.getVisibility());
+				mChild.setVisibility(View.GONE);
+			}
+			else
+			{
+				final Integer mVisibility = mMaskedIcons.get(mIndex);
+				if (mVisibility == null) continue;
+				mMaskedIcons.remove(mIndex);
+
+				// Leave it if it has since shown itself.
+				if (mChild.getVisibility() == View.GONE)
+					mChild.setVisibility(mVisibility.intValue());
+			}
+		}
+
+		mIconMask = mMask;
+	}
+
+	/**
+	 * @return The key of the setting for an icon's
+	 * visibility, or null if the view is not an icon.
+	 */
+	private static final String getIconKey(View mChild)
+	{
+		if (mChild instanceof SignalView)		return Preferences.KEY_ICON_SIGNAL;
+		if (mChild instanceof DataView)			return Preferences.KEY_ICON_DATA;
+		if (mChild instanceof CarrierView)		return Preferences.KEY_ICON_CARRIER;
+		if (mChild instanceof RoamingView)		return Preferences.KEY_ICON_ROAMING;
+		if (mChild instanceof WifiView)			return Preferences.KEY_ICON_WIFI;
+		if (mChild instanceof BluetoothView)	return Preferences.KEY_ICON_BLUETOOTH;
+		if (mChild instanceof RingerView)		return Preferences.KEY_ICON_RINGER;
+		if (mChild instanceof LanguageView)		return Preferences.KEY_ICON_LANGUAGE;
+		if (mChild instanceof BatteryPercent)	return Preferences.KEY_ICON_BATTERY_PERCENT;
+		if (mChild instanceof BatteryView)		return Preferences.KEY_ICON_BATTERY;
+		if (mChild instanceof WPDigitalClock)	return Preferences.KEY_ICON_TIME;
+		return null;
+	}
+
 	// Reflected methods for entering the foreground.
 	private static final Class[] mStartForegroundSignature = new Class[] {
         int.class, Notification.class};
@@ -548,53 +689,10 @@ public final class BarService extends Service
 			// Use the drop duration saved in Preferences.
 			mBarView.setDropDuration(mPrefs.getDropDuration());
 
-			final ArrayList<String> mIconKeys = Preferences.getIconKeys();
-			for (int i = 0, e = mBarView.getChildCount(); i < e; ++i)
-			{
-				final View mChild = mBarView.getChildAt(i);
-
-				for (String mKey : mIconKeys)
-				{
-					final boolean mKeyEnabled = mPrefs.getBoolean(mKey, true);
-					if (!mKeyEnabled)
-					{
-						// Hide all icons that are set to do so.
-						if ((Preferences.KEY_ICON_SIGNAL.equals(mKey) &&
-							mChild instanceof SignalView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_DATA.equals(mKey) &&
-							mChild instanceof DataView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_CARRIER.equals(mKey) &&
-							mChild instanceof CarrierView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_ROAMING.equals(mKey) &&
-							mChild instanceof RoamingView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_WIFI.equals(mKey) &&
-							mChild instanceof WifiView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_BLUETOOTH.equals(mKey) &&
-							mChild instanceof BluetoothView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_RINGER.equals(mKey) &&
-							mChild instanceof RingerView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_LANGUAGE.equals(mKey) &&
-							mChild instanceof LanguageView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_BATTERY_PERCENT
-							.equals(mKey) && mChild instanceof BatteryPercent))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_BATTERY.equals(mKey) &&
-							mChild instanceof BatteryView))
-							mChild.setVisibility(View.GONE);
-						else if ((Preferences.KEY_ICON_TIME.equals(mKey) &&
-							mChild instanceof WPDigitalClock))
-							mChild.setVisibility(View.GONE);
-					}
-				}
-			}
+			// Hide all icons that are set to do so.
+			mIconMask = -1;
+			mMaskedIcons.clear();
+			applyIconMask(mPrefs.getIconMask());
 
 			mWM.addView(mBarView, mParams);
 		}
@@ -689,7 +787,8 @@ public final class BarService extends Service
 	/** Flag if the infrastructure is initialized. */
     // private boolean isInfrastructureInitialized;
 
-	private boolean isCreated = false;
+	private boolean isCreated = false,
+					isDeclined = false;
 
 	/**
 	 * Creates the status bar and applies all necessary
@@ -698,34 +797,48 @@ public final class BarService extends Service
 	 */
 	protected void create()
 	{
-		if (isCreated) return;
+		if (isCreated || isDeclined) return;
+
+		// Get an instance of the preferences. We run in our own
+		// process, so read them through the settings channel to
+		// see changes made by HomeActivity as they happen.
+		mPrefs = Preferences.getInstance(this);
+		if (isRemote())
+		{
+			mPrefs.openChannel();
+
+			// LocalBarService hosts the status bar, so refuse to
+			// start a second one, ie. when bound by another app.
+			if (mPrefs.isServiceLocal())
+			{
+				Log.w(TAG, "Status bar is hosted locally, not starting.");
+				mPrefs.closeChannel();
+				isDeclined = true;
+				stopSelf();
+				return;
+			}
+		}
+		mPrefs.registerOnSharedPreferenceChangeListener(mSettingsListener);
 
 		// Remove the disabled intent and
 		// broadcast the enabled intent.
+		final int mPid = Process.myPid();
 		removeStickyBroadcast(DISABLED_INTENT);
-		sendStickyBroadcast(ENABLED_INTENT);
-	
-		// Get an instance of the preferences.
-		mPrefs = Preferences.getInstance(this);
+		sendStickyBroadcast(new Intent(ENABLED_INTENT)
+			.putExtra(EXTRA_PID, mPid)
+			.putExtra(EXTRA_START_TIME, getStartTime(mPid)));
+
+		// The blacklist is written from another process too,
+		// read it back once per change rather than per lookup.
+		if (isRemote())
+			getContentResolver().registerContentObserver(
+				Blacklist.CONTENT_URI, false, mBlacklistObserver);
 
 		// Start monitoring when apps are opened.
 		startMonitorThread();
 
-		// Don't bother listening for screen on/ off
-		// events unless the setting is enabled.
-		if (mPrefs.isUsingBlacklist() || mPrefs.isExpandDisabled())
-		{
-			// Listen for screen on/ off.
-			registerReceiver(mScreenReceiver, mFilter);
-		}
-
-		// Don't bother listening to unlock
-		// events unless the setting is enabled.
-		if (mPrefs.isExpandDisabled())
-		{
-			// Listen for unlock.
-			registerReceiver(mPresenceReceiver, mLockFilter);
-		}
+		// Listen for screen on/ off and unlock if necessary.
+		updateReceivers();
 
         // Display a notification about us starting.
 		// We put an icon in the status bar.
@@ -743,6 +856,140 @@ public final class BarService extends Service
 		create();
 	}
 
+	/**
+	 * @return True if this service runs in its own process,
+	 * which is the case unless it is a {@link LocalBarService}.
+	 */
+	protected boolean isRemote()
+	{
+		return true;
+	}
+
+	/**
+	 * @return The start time of a process in clock ticks since
+	 * boot, read from /proc/&lt;pid&gt;/stat, or -1 if it is gone.
+	 * Together with the pid this identifies a process even when
+	 * the pid has since been reused.
+	 */
+	public static final long getStartTime(int mPid)
+	{
+		BufferedReader mReader = null;
+		try
+		{
+			mReader = new BufferedReader(
+				new FileReader("/proc/" + mPid + "/stat"), 512);
+			final String mStat = mReader.readLine();
+			if (mStat == null) return -1;
+
+			// The name may contain spaces, fields are counted from
+			// the state after it, which is the third, start time
+			// is the twenty-second.
+			final String[] mFields = mStat.substring(
+				mStat.lastIndexOf(')') + 2).split(" ");
+			return (mFields.length > 19) ? Long.parseLong(mFields[19]) : -1;
+		}
+		catch (IOException e) {}
+		catch (RuntimeException e) {}
+		finally
+		{
+			if (mReader != null)
+				try { mReader.close(); } catch (IOException e) {}
+		}
+
+		return -1;
+	}
+
+	private boolean mScreenRegistered = false,
+					mPresenceRegistered = false;
+
+	/**
+	 * Register or unregister the screen and unlock receivers
+	 * depending on the settings that need them.
+	 */
+	private final void updateReceivers()
+	{
+		// Don't bother listening for screen on/ off
+		// events unless the setting is enabled.
+		final boolean mScreen = (mPrefs.isUsingBlacklist() || mPrefs.isExpandDisabled());
+		if (mScreen != mScreenRegistered)
+		{
+			if (mScreen) registerReceiver(mScreenReceiver, mFilter);
+			else		 unregisterReceiver(mScreenReceiver);
+			mScreenRegistered = mScreen;
+		}
+
+		// Don't bother listening to unlock
+		// events unless the setting is enabled.
+		final boolean mPresence = mPrefs.isExpandDisabled();
+		if (mPresence != mPresenceRegistered)
+		{
+			if (mPresence) registerReceiver(mPresenceReceiver, mLockFilter);
+			else		   unregisterReceiver(mPresenceReceiver);
+			mPresenceRegistered = mPresence;
+		}
+	}
+
+	/**
+	 * Reloads {@link Blacklist} once for every write made
+	 * from another process, however many packages it changed.
+	 */
+	private final ContentObserver mBlacklistObserver = new ContentObserver(new Handler())
+	{
+		@Override
+		public void onChange(boolean selfChange)
+		{
+			Blacklist.getInstance(BarService.this).reload();
+		}
+	};
+
+	/**
+	 * Applies settings changed from another process to the
+	 * running status bar, one setting at a time.
+	 */
+	private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener =
+		new SharedPreferences.OnSharedPreferenceChangeListener()
+	{
+		public void onSharedPreferenceChanged(SharedPreferences mShared, String mKey)
+		{
+			if (Preferences.KEY_BLACKLIST.equals(mKey))
+			{
+				if (mPrefs.isUsingBlacklist())
+				{
+					startMonitorThread();
+				}
+				else if (mThread != null)
+				{
+					mThread.interrupt();
+					mThread = null;
+				}
+				updateReceivers();
+				return;
+			}
+			else if (Preferences.KEY_EXPAND.equals(mKey))
+			{
+				updateReceivers();
+				return;
+			}
+
+			if (mBarView == null) return;
+
+			if (Preferences.KEY_BACKGROUND.equals(mKey))
+				mBarView.setBackgroundColor(mPrefs.getBackgroundColor());
+			else if (Preferences.KEY_ICON.equals(mKey))
+				mBarView.setAllColors(mPrefs.getIconColor());
+			else if (Preferences.KEY_SWIPE.equals(mKey))
+				mBarView.setExpand(mPrefs.isSwipeEnabled());
+			else if (Preferences.KEY_DROP_DURATION.equals(mKey))
+				mBarView.setDropDuration(mPrefs.getDropDuration());
+			else if (Preferences.KEY_DROP.equals(mKey))
+			{
+				// The window type depends on it, so start over.
+				destroyStatusBar();
+				createStatusBar();
+			}
+		}
+	};
+
 	private boolean isDestroyed = false;
 	
 	/*@Override
@@ -765,7 +1012,9 @@ public final class BarService extends Service
 	 */
 	private void destroy()
 	{
-		if (isDestroyed) return;
+		// Nothing was set up, and the sticky broadcast
+		// belongs to the status bar that is running.
+		if (isDestroyed || !isCreated) return;
 
 		// Remove the disabled intent and
 		// broadcast the enabled intent.
@@ -774,6 +1023,15 @@ public final class BarService extends Service
 
 		destroyStatusBar();
 
+		// Stop listening for settings changes.
+		if (mPrefs != null)
+		{
+			mPrefs.unregisterOnSharedPreferenceChangeListener(mSettingsListener);
+			mPrefs.closeChannel();
+		}
+		if (isRemote())
+			getContentResolver().unregisterContentObserver(mBlacklistObserver);
+
 		// Stop running in the foreground and
 		// cancel the status bar notification.
 		stopForegroundCompat(NOTIFICATION);
@@ -861,6 +1119,8 @@ public final class BarService extends Service
 	@Override
     public IBinder onBind(Intent intent)
 	{
+		// Refuse binds while LocalBarService hosts the status bar.
+		if (isDeclined) return null;
         return mBinder;
     }
 
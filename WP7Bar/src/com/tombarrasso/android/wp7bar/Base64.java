@@ -20,6 +20,18 @@ package com.tombarrasso.android.wp7bar;
  
 // Java Packages
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
  
 /**
  * Utilities for encoding and decoding the Base64 representation of
@@ -72,10 +84,32 @@ public class Base64
     //  shared code
     //  --------------------------------------------------------
  
+    /**
+     * Size of the per-thread arrays that buffers without a backing
+     * array are copied through.  A multiple of both 3 and 4 so that
+     * whole tuples are always coded.
+     */
+    private static final int SCRATCH_SIZE = 3 * 1024;
+ 
+    private static final ThreadLocal<byte[][]> SCRATCH = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][] {
+                new byte[SCRATCH_SIZE], new byte[SCRATCH_SIZE * 8/5 + 10]
+            };
+        }
+    };
+ 
     /* package */ static abstract class Coder {
         public byte[] output;
         public int op;
  
+        /**
+         * Position within output at which coded data is written.
+         * this.op is relative to it.
+         */
+        public int outputOffset;
+ 
         /**
          * Encode/decode another block of input data.  this.output is
          * provided by the caller, and must be big enough to hold all
@@ -157,6 +191,15 @@ public class Base64
      * incorrect padding
      */
     public static byte[] decode(byte[] input, int offset, int len, int flags) {
+        if (isParallel(len)) {
+            final DecodePlan plan = DecodePlan.create(input, offset, len, flags);
+            if (plan != null) {
+                final byte[] output = new byte[plan.length];
+                plan.run(input, output, 0, flags);
+                return output;
+            }
+        }
+ 
         // Allocate space for the most data the input could represent.
         // (It could contain less if it contains whitespace, etc.)
         Decoder decoder = new Decoder(flags, new byte[len*3/4]);
@@ -177,12 +220,130 @@ public class Base64
         return temp;
     }
  
+    /**
+     * Decode the Base64-encoded data in input into a caller-supplied
+     * array, allocating nothing.
+     *
+     * @param input        the data to decode
+     * @param offset       the position within the input array at which to start
+     * @param len          the number of bytes of input to decode
+     * @param output       the array to decode into
+     * @param outputOffset the position within the output array at which to
+     *                     start
+     * @param flags        controls certain features of the decoded output.
+     *                     Pass {@code DEFAULT} to decode standard Base64.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws IllegalArgumentException if the input contains
+     * incorrect padding
+     * @throws ArrayIndexOutOfBoundsException if output does not have
+     * room for {@link #decodedLength} bytes
+     */
+    public static int decode(byte[] input, int offset, int len,
+                             byte[] output, int outputOffset, int flags) {
+        final int room = output.length - outputOffset;
+        if (isParallel(len)) {
+            final DecodePlan plan = DecodePlan.create(input, offset, len, flags);
+            if (plan != null) {
+                if (room < plan.length) {
+                    throw new ArrayIndexOutOfBoundsException("output too small");
+                }
+                plan.run(input, output, outputOffset, flags);
+                return plan.length;
+            }
+        }
+ 
+        // Only scan the input when the cheap bound does not fit.
+        if (room < len*3/4 && room < decodedLength(input, offset, len, flags)) {
+            throw new ArrayIndexOutOfBoundsException("output too small");
+        }
+ 
+        Decoder decoder = new Decoder(flags, output);
+        decoder.outputOffset = outputOffset;
+ 
+        if (!decoder.process(input, offset, len, true)) {
+            throw new IllegalArgumentException("bad base-64");
+        }
+ 
+        return decoder.op;
+    }
+ 
+    /**
+     * Decode the remaining Base64-encoded data in input into output.
+     * Buffers with a backing array are decoded in place, others,
+     * such as direct buffers, are copied through a small per-thread
+     * array.  On return the position of input is its limit and the
+     * position of output is advanced past the decoded data.
+     *
+     * @param flags  controls certain features of the decoded output.
+     *               Pass {@code DEFAULT} to decode standard Base64.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws IllegalArgumentException if the input contains
+     * incorrect padding
+     * @throws BufferOverflowException if output does not have
+     * room for the decoded data
+     */
+    public static int decode(ByteBuffer input, ByteBuffer output, int flags) {
+        if (input.hasArray() && output.hasArray() && !output.isReadOnly()) {
+            final int len = input.remaining();
+            final int written;
+            try {
+                written = decode(input.array(), input.arrayOffset() + input.position(), len,
+                                 output.array(), output.arrayOffset() + output.position(), flags);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new BufferOverflowException();
+            }
+            input.position(input.limit());
+            output.position(output.position() + written);
+            return written;
+        }
+ 
+        final byte[][] scratch = SCRATCH.get();
+        final byte[] in = scratch[0];
+        Decoder decoder = new Decoder(flags, scratch[1]);
+        int written = 0;
+ 
+        do {
+            final int n = Math.min(input.remaining(), in.length);
+            input.get(in, 0, n);
+            if (!decoder.process(in, 0, n, !input.hasRemaining())) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+            output.put(decoder.output, 0, decoder.op);
+            written += decoder.op;
+        } while (input.hasRemaining());
+ 
+        return written;
+    }
+ 
+    /**
+     * @return the exact number of bytes the Base64-encoded data in
+     * input decodes to, assuming it is valid.  This scans the input
+     * but does not decode it.
+     */
+    public static int decodedLength(byte[] input, int offset, int len, int flags) {
+        final int[] alphabet = ((flags & URL_SAFE) == 0) ? Decoder.DECODE : Decoder.DECODE_WEBSAFE;
+        int data = 0;
+        for (int p = offset, e = offset + len; p < e; ++p) {
+            if (alphabet[input[p] & 0xff] >= 0) ++data;
+        }
+ 
+        switch (data % 4) {
+            case 2:  return data / 4 * 3 + 1;
+            case 3:  return data / 4 * 3 + 2;
+            default: return data / 4 * 3;
+        }
+    }
+ 
     /* package */ static class Decoder extends Coder {
         /**
          * Lookup table for turning bytes into their position in the
          * Base64 alphabet.
          */
-        private static final int DECODE[] = {
+        /* package */ static final int DECODE[] = {
             -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
             -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
             -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 62, -1, -1, -1, 63,
@@ -205,7 +366,7 @@ public class Base64
          * Decode lookup table for the "web safe" variant (RFC 3548
          * sec. 4) where - and _ replace + and /.
          */
-        private static final int DECODE_WEBSAFE[] = {
+        /* package */ static final int DECODE_WEBSAFE[] = {
             -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
             -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
             -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 62, -1, -1,
@@ -228,6 +389,25 @@ public class Base64
         private static final int SKIP = -1;
         private static final int EQUALS = -2;
  
+        /**
+         * The DECODE arrays shifted into the position of the first,
+         * second and third character of a tuple, so the fast path
+         * only has to or them together.  Non-data values stay
+         * negative when shifted.
+         */
+        private static final int[][] SHIFTED = shift(DECODE);
+        private static final int[][] SHIFTED_WEBSAFE = shift(DECODE_WEBSAFE);
+ 
+        private static int[][] shift(int[] alphabet) {
+            final int[][] shifted = new int[3][alphabet.length];
+            for (int i = 0; i < alphabet.length; ++i) {
+                shifted[0][i] = alphabet[i] << 18;
+                shifted[1][i] = alphabet[i] << 12;
+                shifted[2][i] = alphabet[i] << 6;
+            }
+            return shifted;
+        }
+ 
         /**
          * States 0-3 are reading through the next input tuple.
          * State 4 is having read one '=' and expecting exactly
@@ -241,11 +421,13 @@ public class Base64
         private int value;
  
         final private int[] alphabet;
+        final private int[][] shifted;
  
         public Decoder(int flags, byte[] output) {
             this.output = output;
  
             alphabet = ((flags & URL_SAFE) == 0) ? DECODE : DECODE_WEBSAFE;
+            shifted = ((flags & URL_SAFE) == 0) ? SHIFTED : SHIFTED_WEBSAFE;
             state = 0;
             value = 0;
         }
@@ -277,9 +459,12 @@ public class Base64
             // the member variable is final.)
             int state = this.state;
             int value = this.value;
-            int op = 0;
+            int op = this.outputOffset;
             final byte[] output = this.output;
             final int[] alphabet = this.alphabet;
+            final int[] d18 = this.shifted[0];
+            final int[] d12 = this.shifted[1];
+            final int[] d6 = this.shifted[2];
  
             while (p < len) {
                 // Try the fast path:  we're starting a new tuple and the
@@ -297,11 +482,35 @@ public class Base64
                 // You can remove this whole block and the output should
                 // be the same, just slower.
                 if (state == 0) {
+                    // Eight bytes at a time while both tuples are all
+                    // data, with a single check of their sign.
+                    while (p+8 <= len) {
+                        final int v1 = d18[input[p] & 0xff] |
+                                       d12[input[p+1] & 0xff] |
+                                       d6[input[p+2] & 0xff] |
+                                       alphabet[input[p+3] & 0xff];
+                        final int v2 = d18[input[p+4] & 0xff] |
+                                       d12[input[p+5] & 0xff] |
+                                       d6[input[p+6] & 0xff] |
+                                       alphabet[input[p+7] & 0xff];
+                        if ((v1 | v2) < 0) break;
+                        output[op+5] = (byte) v2;
+                        output[op+4] = (byte) (v2 >> 8);
+                        output[op+3] = (byte) (v2 >> 16);
+                        output[op+2] = (byte) v1;
+                        output[op+1] = (byte) (v1 >> 8);
+                        output[op] = (byte) (v1 >> 16);
+                        op += 6;
+                        p += 8;
+                    }
+ 
+                    // Then four at a time, up to whitespace, padding
+                    // or the last few bytes.
                     while (p+4 <= len &&
-                           (value = ((alphabet[input[p] & 0xff] << 18) |
-                                     (alphabet[input[p+1] & 0xff] << 12) |
-                                     (alphabet[input[p+2] & 0xff] << 6) |
-                                     (alphabet[input[p+3] & 0xff]))) >= 0) {
+                           (value = (d18[input[p] & 0xff] |
+                                     d12[input[p+1] & 0xff] |
+                                     d6[input[p+2] & 0xff] |
+                                     alphabet[input[p+3] & 0xff])) >= 0) {
                         output[op+2] = (byte) value;
                         output[op+1] = (byte) (value >> 8);
                         output[op] = (byte) (value >> 16);
@@ -399,7 +608,7 @@ public class Base64
                 // more.
                 this.state = state;
                 this.value = value;
-                this.op = op;
+                this.op = op - this.outputOffset;
                 return true;
             }
  
@@ -437,7 +646,7 @@ public class Base64
             }
  
             this.state = state;
-            this.op = op;
+            this.op = op - this.outputOffset;
             return true;
         }
     }
@@ -514,10 +723,115 @@ public class Base64
         Encoder encoder = new Encoder(flags, null);
  
         // Compute the exact length of the array we will produce.
+        int output_len = encodedLength(len, flags);
+ 
+        encoder.output = new byte[output_len];
+        if (isParallel(len)) {
+            encodeParallel(input, offset, len, encoder.output, 0, flags);
+            return encoder.output;
+        }
+        encoder.process(input, offset, len, true);
+ 
+        assert encoder.op == output_len;
+ 
+        return encoder.output;
+    }
+ 
+    /**
+     * Base64-encode the given data into a caller-supplied array,
+     * allocating nothing.
+     *
+     * @param input        the data to encode
+     * @param offset       the position within the input array at which to
+     *                     start
+     * @param len          the number of bytes of input to encode
+     * @param output       the array to encode into
+     * @param outputOffset the position within the output array at which to
+     *                     start
+     * @param flags        controls certain features of the encoded output.
+     *                     Passing {@code DEFAULT} results in output that
+     *                     adheres to RFC 2045.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws ArrayIndexOutOfBoundsException if output does not have
+     * room for {@link #encodedLength} bytes
+     */
+    public static int encode(byte[] input, int offset, int len,
+                             byte[] output, int outputOffset, int flags) {
+        final int output_len = encodedLength(len, flags);
+        if (output.length - outputOffset < output_len) {
+            throw new ArrayIndexOutOfBoundsException("output too small");
+        }
+ 
+        if (isParallel(len)) {
+            encodeParallel(input, offset, len, output, outputOffset, flags);
+            return output_len;
+        }
+ 
+        Encoder encoder = new Encoder(flags, output);
+        encoder.outputOffset = outputOffset;
+        encoder.process(input, offset, len, true);
+ 
+        assert encoder.op == output_len;
+ 
+        return encoder.op;
+    }
+ 
+    /**
+     * Base64-encode the remaining data in input into output.
+     * Buffers with a backing array are encoded in place, others,
+     * such as direct buffers, are copied through a small per-thread
+     * array.  On return the position of input is its limit and the
+     * position of output is advanced past the encoded data.
+     *
+     * @param flags  controls certain features of the encoded output.
+     *               Passing {@code DEFAULT} results in output that
+     *               adheres to RFC 2045.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws BufferOverflowException if output does not have
+     * room for {@link #encodedLength} bytes
+     */
+    public static int encode(ByteBuffer input, ByteBuffer output, int flags) {
+        final int len = input.remaining();
+        final int output_len = encodedLength(len, flags);
+        if (output.remaining() < output_len) {
+            throw new BufferOverflowException();
+        }
+ 
+        if (input.hasArray() && output.hasArray() && !output.isReadOnly()) {
+            encode(input.array(), input.arrayOffset() + input.position(), len,
+                   output.array(), output.arrayOffset() + output.position(), flags);
+            input.position(input.limit());
+            output.position(output.position() + output_len);
+            return output_len;
+        }
+ 
+        final byte[][] scratch = SCRATCH.get();
+        final byte[] in = scratch[0];
+        Encoder encoder = new Encoder(flags, scratch[1]);
+ 
+        do {
+            final int n = Math.min(input.remaining(), in.length);
+            input.get(in, 0, n);
+            encoder.process(in, 0, n, !input.hasRemaining());
+            output.put(encoder.output, 0, encoder.op);
+        } while (input.hasRemaining());
+ 
+        return output_len;
+    }
+ 
+    /**
+     * @return the exact number of bytes that {@code len} bytes
+     * encode to with the given flags.
+     */
+    public static int encodedLength(int len, int flags) {
         int output_len = len / 3 * 4;
  
         // Account for the tail of the data and the padding bytes, if any.
-        if (encoder.do_padding) {
+        if ((flags & NO_PADDING) == 0) {
             if (len % 3 > 0) {
                 output_len += 4;
             }
@@ -530,17 +844,12 @@ public class Base64
         }
  
         // Account for the newlines, if any.
-        if (encoder.do_newline && len > 0) {
+        if ((flags & NO_WRAP) == 0 && len > 0) {
             output_len += (((len-1) / (3 * Encoder.LINE_GROUPS)) + 1) *
-                (encoder.do_cr ? 2 : 1);
+                ((flags & CRLF) != 0 ? 2 : 1);
         }
  
-        encoder.output = new byte[output_len];
-        encoder.process(input, offset, len, true);
- 
-        assert encoder.op == output_len;
- 
-        return encoder.output;
+        return output_len;
     }
  
     /* package */ static class Encoder extends Coder {
@@ -608,7 +917,7 @@ public class Base64
             // Using local variables makes the encoder about 9% faster.
             final byte[] alphabet = this.alphabet;
             final byte[] output = this.output;
-            int op = 0;
+            int op = this.outputOffset;
             int count = this.count;
  
             int p = offset;
@@ -715,7 +1024,9 @@ public class Base64
                         if (do_cr) output[op++] = '\r';
                         output[op++] = '\n';
                     }
-                } else if (do_newline && op > 0 && count != LINE_GROUPS) {
+                } else if (do_newline && count != LINE_GROUPS) {
+                    // The line may have been started by an earlier
+                    // call, so do not look at this call's output alone.
                     if (do_cr) output[op++] = '\r';
                     output[op++] = '\n';
                 }
@@ -734,12 +1045,279 @@ public class Base64
                 }
             }
  
-            this.op = op;
+            this.op = op - this.outputOffset;
             this.count = count;
  
             return true;
         }
     }
  
+    //  --------------------------------------------------------
+    //  parallel coding
+    //  --------------------------------------------------------
+ 
+    /**
+     * Inputs of at least this many bytes are split into chunks that
+     * are coded on several threads, straight into the one output
+     * array.  Below it the cost of handing work to other threads is
+     * more than what is saved.
+     */
+    public static final int PARALLEL_THRESHOLD = 256 * 1024;
+ 
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+ 
+    private static ExecutorService pool;
+ 
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "Base64");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+ 
+    private static boolean isParallel(int len) {
+        return len >= PARALLEL_THRESHOLD && THREADS > 1;
+    }
+ 
+    /**
+     * Run every task on the pool and wait for them.  If interrupted,
+     * the tasks are run again on this thread; each one only writes
+     * its own part of the output so this is safe.
+     *
+     * @return true if every task returned true
+     */
+    private static boolean runAll(ArrayList<Callable<Boolean>> tasks) {
+        try {
+            boolean ok = true;
+            for (Future<Boolean> future : getPool().invokeAll(tasks)) {
+                ok &= future.get().booleanValue();
+            }
+            return ok;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+ 
+        boolean ok = true;
+        for (Callable<Boolean> task : tasks) {
+            try {
+                ok &= task.call().booleanValue();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return ok;
+    }
+ 
+    /**
+     * Encode in chunks of whole lines (or whole tuples with {@code
+     * NO_WRAP}), so only the last chunk has a tail or padding and
+     * every chunk's position in the output is known up front.
+     */
+    private static void encodeParallel(final byte[] input, final int offset, final int len,
+                                       final byte[] output, final int outputOffset,
+                                       final int flags) {
+        final int unit = ((flags & NO_WRAP) == 0) ? 3 * Encoder.LINE_GROUPS : 3;
+        final int chunk = (len / THREADS / unit + 1) * unit;
+ 
+        final ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(THREADS);
+        for (int start = 0; start < len; start += chunk) {
+            final int p = offset + start;
+            final int n = Math.min(chunk, len - start);
+            final int op = outputOffset + encodedLength(start, flags);
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() {
+                    Encoder encoder = new Encoder(flags, output);
+                    encoder.outputOffset = op;
+                    return Boolean.valueOf(encoder.process(input, p, n, true));
+                }
+            });
+        }
+ 
+        runAll(tasks);
+    }
+ 
+    /**
+     * How to split Base64-encoded input so that every chunk but the
+     * last holds a whole number of tuples and no padding.  Whitespace
+     * can be anywhere, so the alphabet characters in each chunk are
+     * first counted in parallel and the boundaries then moved forward
+     * to the next tuple.
+     */
+    private static final class DecodePlan {
+        /** Start of each chunk in the input, plus its end. */
+        final int[] starts;
+ 
+        /** Position of each chunk's output, relative to the first. */
+        final int[] outputStarts;
+ 
+        /** Exact length of the decoded output, if it is valid. */
+        final int length;
+ 
+        private DecodePlan(int[] starts, int[] outputStarts, int length) {
+            this.starts = starts;
+            this.outputStarts = outputStarts;
+            this.length = length;
+        }
+ 
+        /**
+         * @return the plan, or null if the input should be decoded
+         * on one thread, ie. padding before the last chunk, which is
+         * an error left to the serial decoder to report.
+         */
+        static DecodePlan create(final byte[] input, int offset, int len, int flags) {
+            final int[] alphabet = ((flags & URL_SAFE) == 0) ? Decoder.DECODE : Decoder.DECODE_WEBSAFE;
+            final int chunks = THREADS;
+            final int[] starts = new int[chunks + 1];
+            for (int i = 0; i <= chunks; ++i) {
+                starts[i] = offset + (int) ((long) len * i / chunks);
+            }
+ 
+            // Count the alphabet characters in each chunk, -1 if it
+            // has padding.
+            final int[] counts = new int[chunks];
+            final ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(chunks);
+            for (int i = 0; i < chunks; ++i) {
+                final int chunk = i;
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() {
+                        int count = 0;
+                        for (int p = starts[chunk], e = starts[chunk + 1]; p < e; ++p) {
+                            final int d = alphabet[input[p] & 0xff];
+                            if (d >= 0) {
+                                ++count;
+                            } else if (d == Decoder.EQUALS) {
+                                count = -1;
+                                break;
+                            }
+                        }
+                        counts[chunk] = count;
+                        return Boolean.TRUE;
+                    }
+                });
+            }
+            runAll(tasks);
+ 
+            // The last chunk may end in padding, count it again.
+            if (counts[chunks - 1] < 0) {
+                int count = 0;
+                for (int p = starts[chunks - 1], e = starts[chunks]; p < e; ++p) {
+                    if (alphabet[input[p] & 0xff] >= 0) ++count;
+                }
+                counts[chunks - 1] = count;
+            }
+ 
+            // Move every boundary past the rest of the tuple it cuts.
+            final int[] outputStarts = new int[chunks];
+            int total = 0;
+            for (int i = 0; i < chunks; ++i) {
+                if (counts[i] < 0) return null;
+                if (i > 0) {
+                    int need = (4 - total % 4) % 4;
+                    int p = starts[i];
+                    while (need > 0) {
+                        if (p >= starts[i + 1]) return null;
+                        final int d = alphabet[input[p++] & 0xff];
+                        if (d >= 0) {
+                            --need;
+                        } else if (d == Decoder.EQUALS) {
+                            return null;
+                        }
+                    }
+                    starts[i] = p;
+                    outputStarts[i] = (total + 3) / 4 * 3;
+                }
+                total += counts[i];
+            }
+ 
+            final int length;
+            switch (total % 4) {
+                case 1:  return null;
+                case 2:  length = total / 4 * 3 + 1; break;
+                case 3:  length = total / 4 * 3 + 2; break;
+                default: length = total / 4 * 3; break;
+            }
+            return new DecodePlan(starts, outputStarts, length);
+        }
+ 
+        /**
+         * Decode every chunk on the pool into output.
+         *
+         * @throws IllegalArgumentException if the input contains
+         * incorrect padding
+         */
+        void run(final byte[] input, final byte[] output, final int outputOffset, final int flags) {
+            final ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(outputStarts.length);
+            for (int i = 0; i < outputStarts.length; ++i) {
+                final int p = starts[i];
+                final int n = starts[i + 1] - p;
+                final int op = outputOffset + outputStarts[i];
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() {
+                        Decoder decoder = new Decoder(flags, output);
+                        decoder.outputOffset = op;
+                        return Boolean.valueOf(decoder.process(input, p, n, true));
+                    }
+                });
+            }
+ 
+            if (!runAll(tasks)) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+        }
+    }
+ 
+    //  --------------------------------------------------------
+    //  channels
+    //  --------------------------------------------------------
+ 
+    /**
+     * Wrap a channel so that the data read from it is Base64
+     * encoded or decoded while streaming, using a fixed amount of
+     * memory however large the data.
+     *
+     * @param channel the channel to read the source data from
+     * @param flags   bit flags for controlling the coder
+     * @param encode  true to encode, false to decode
+     *
+     * @see Base64InputStream
+     */
+    public static ReadableByteChannel newReadableChannel(ReadableByteChannel channel,
+                                                         int flags, boolean encode) {
+        return Channels.newChannel(new Base64InputStream(
+            Channels.newInputStream(channel), flags, encode));
+    }
+ 
+    /**
+     * Wrap a channel so that the data written to it is Base64
+     * encoded or decoded while streaming, using a fixed amount of
+     * memory however large the data.  The returned channel must be
+     * closed to write out the final tuple; pass {@link #NO_CLOSE} to
+     * leave the wrapped channel open.
+     *
+     * @param channel the channel to write the coded data to
+     * @param flags   bit flags for controlling the coder
+     * @param encode  true to encode, false to decode
+     *
+     * @see Base64OutputStream
+     */
+    public static WritableByteChannel newWritableChannel(WritableByteChannel channel,
+                                                         int flags, boolean encode) {
+        return Channels.newChannel(new Base64OutputStream(
+            Channels.newOutputStream(channel), flags, encode));
+    }
+ 
     private Base64() { }   // don't instantiate
 }
@@ -0,0 +1,258 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * Blacklist.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Android Packages
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+// Java Packages
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Compact store for the packages that the status bar should be
+ * automatically hidden for. It is kept apart from the settings in
+ * a small file of sorted package names, so the settings do not grow
+ * with every application ever toggled and loading them does not pay
+ * for the size of the blacklist. Lookups are a binary search.<br /><br />
+ * The file may be written by another process, ie. {@link BarService}
+ * runs in its own, so it is read again whenever it has been modified.
+ * Every write notifies {@link CONTENT_URI} once, however many packages
+ * it changed, so other processes can read it back a single time.
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-09-2011
+ * @version		1.0
+ * @category	Static Utility
+ */
+
+public final class Blacklist
+{
+	public static final String TAG = Blacklist.class.getSimpleName(),
+							   PACKAGE = Blacklist.class.getPackage().getName();
+
+	// Name of the file in which the blacklist is stored.
+	private static final String FILE_NAME = "blacklist.bin";
+
+	// Header of the file, bump the version if the format changes.
+	private static final int MAGIC = 0x5342424C,
+							 FORMAT_VERSION = 1;
+
+	private static final String[] EMPTY = new String[0];
+
+	/**
+	 * Notified whenever the blacklist is written.
+	 */
+	public static final Uri CONTENT_URI = SettingsProvider.getUri("blacklist_packages");
+
+	private static Blacklist mInstance;
+
+	private final File mFile;
+	private final ContentResolver mResolver;
+
+	// Sorted package names, and when they were read.
+	private String[] mPackages = EMPTY;
+	private long mModified = -1;
+
+	private Blacklist(Context mContext)
+	{
+		mFile = new File(mContext.getApplicationContext().getFilesDir(), FILE_NAME);
+		mResolver = mContext.getApplicationContext().getContentResolver();
+	}
+
+	/**
+	 * Lazily-load an instance of {@link Blacklist} statically
+	 * in a Singleton fashion.
+	 */
+	public static final synchronized Blacklist getInstance(Context mContext)
+	{
+		if (mInstance == null)
+			mInstance = new Blacklist(mContext);
+
+		return mInstance;
+	}
+
+	/**
+	 * @return True if the status bar should be hidden for the package.
+	 */
+	public final synchronized boolean contains(String packageName)
+	{
+		if (packageName == null) return false;
+		refresh();
+		return (Arrays.binarySearch(mPackages, packageName) >= 0);
+	}
+
+	/**
+	 * @return A copy of all blacklisted packages, sorted.
+	 */
+	public final synchronized String[] getPackages()
+	{
+		refresh();
+		return mPackages.clone();
+	}
+
+	/**
+	 * Add or remove a single package.
+	 */
+	public final synchronized void set(String packageName, boolean hidden)
+	{
+		refresh();
+		if (contains(packageName) == hidden) return;
+
+		final TreeSet<String> mSet = new TreeSet<String>(Arrays.asList(mPackages));
+		if (hidden) mSet.add(packageName);
+		else		mSet.remove(packageName);
+		write(mSet);
+	}
+
+	/**
+	 * Add or remove many packages with a single write.
+	 */
+	public final synchronized void setAll(Collection<String> packageNames, boolean hidden)
+	{
+		refresh();
+
+		final TreeSet<String> mSet = new TreeSet<String>(Arrays.asList(mPackages));
+		final boolean mChanged = (hidden) ? mSet.addAll(packageNames) :
+											mSet.removeAll(packageNames);
+		if (mChanged) write(mSet);
+	}
+
+	/**
+	 * Hide some packages and show others with a single write.
+	 * A package in both is hidden.
+	 */
+	public final synchronized void update(Collection<String> hidden, Collection<String> shown)
+	{
+		refresh();
+
+		final TreeSet<String> mSet = new TreeSet<String>(Arrays.asList(mPackages));
+		boolean mChanged = false;
+		if (shown != null)  mChanged |= mSet.removeAll(shown);
+		if (hidden != null) mChanged |= mSet.addAll(hidden);
+		if (mChanged) write(mSet);
+	}
+
+	/**
+	 * Read the file again now, ie. when notified that another
+	 * process wrote it, instead of on the next lookup.
+	 */
+	public final synchronized void reload()
+	{
+		mModified = -1;
+		refresh();
+	}
+
+	/**
+	 * Read the file again if it changed since it was last read.
+	 */
+	private final void refresh()
+	{
+		final long mLastModified = mFile.lastModified();
+		if (mLastModified == mModified) return;
+
+		mModified = mLastModified;
+		mPackages = read();
+	}
+
+	/**
+	 * @return The sorted package names in the file.
+	 */
+	private final String[] read()
+	{
+		if (!mFile.exists()) return EMPTY;
+
+		DataInputStream mIn = null;
+		try
+		{
+			mIn = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(mFile)));
+
+			if (mIn.readInt() != MAGIC || mIn.readInt() != FORMAT_VERSION)
+				return EMPTY;
+
+			final String[] mRead = new String[mIn.readInt()];
+			for (int i = 0; i < mRead.length; ++i)
+				mRead[i] = mIn.readUTF();
+
+			return mRead;
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Could not read the blacklist.", e);
+			return EMPTY;
+		}
+		finally
+		{
+			if (mIn != null) try { mIn.close(); } catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Writes the packages to a temporary file and then moves
+	 * it in place so a partial write is never read back.
+	 */
+	private final void write(TreeSet<String> mSet)
+	{
+		mPackages = mSet.toArray(new String[mSet.size()]);
+
+		final File mTemp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream mOut = null;
+		try
+		{
+			mOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(mTemp)));
+
+			mOut.writeInt(MAGIC);
+			mOut.writeInt(FORMAT_VERSION);
+			mOut.writeInt(mPackages.length);
+			for (String mPackage : mPackages)
+				mOut.writeUTF(mPackage);
+
+			mOut.close();
+			mOut = null;
+
+			if (!mTemp.renameTo(mFile))
+				Log.w(TAG, "Could not replace the blacklist.");
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Could not write the blacklist.", e);
+		}
+		finally
+		{
+			if (mOut != null) try { mOut.close(); } catch (IOException e) {}
+		}
+
+		mModified = mFile.lastModified();
+		mResolver.notifyChange(CONTENT_URI, null);
+	}
+}
@@ -24,17 +24,17 @@ import android.content.Context;
 import android.app.ListActivity;
 import android.os.Bundle;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.content.Intent;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.view.Gravity;
 import android.view.ViewGroup;
 import android.view.LayoutInflater;
 import android.util.Log;
-import android.util.TypedValue;
 import android.widget.Checkable;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
-import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.view.ViewGroup;
 import android.widget.TextView;
@@ -46,36 +46,44 @@ import android.widget.Checkable;
 import android.widget.ArrayAdapter;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.SectionIndexer;
 
 // Java Packages
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Comparator;
 
 // UI Packages
-import com.tombarrasso.android.wp7ui.WPTheme;
 import com.tombarrasso.android.wp7ui.widget.WPThemeView;
-import com.tombarrasso.android.wp7ui.widget.WPJumpView;
-import com.tombarrasso.android.wp7ui.widget.WPTextView;
 
 // App Packages
 import com.tombarrasso.android.wp7bar.Preferences.AppInfo;
+import com.tombarrasso.android.wp7bar.Preferences.AppComparator;
 
 /**
  * This {@link Activity} displays a list of all the applications
  * currently installed on the user's device. This consists of an
  * icon, name, and checkbox. When clicked the checkbox toggles
- * and its value is saved in {@link Preferences}. It will be read
+ * and its value is saved in {@link Blacklist}. It will be read
  * later to determine which apps to auto-hide.<br /><br />
  * <ul>
  *	<li>Using an {@link AsyncTask} to retrieve the list of applications; prevents an <abbr title="Android Not Respond">ANR</abbr>.</li>
- *	<li>{@link AppInfo} in a static context to load applications once.</li>
+ *	<li>Applications are read from {@link AppCatalog} instead of {@link PackageManager}.</li>
+ *	<li>Icons are loaded asynchronously through {@link IconCache}.</li>
+ *	<li>Applications are streamed into the list in sorted chunks as they load.</li>
+ *	<li>Rows are bound through a {@link ViewHolder} and checked states are kept in a {@link BitSet}.</li>
+ *	<li>Fast scrolling jumps to sections, typing filters by {@link AppIndex}.</li>
+ *	<li>Menu to hide, show or invert every application shown with a single write.</li>
+ *	<li>The list is no longer static, it is reloaded when {@link AppCatalog} changes.</li>
  * </ul>
  *
  * @author		Thomas James Barrasso <contact @ tombarrasso.com>
  * @since		09-23-2011
- * @version		1.01
+ * @version		1.04
  * @category	{@link Activity}
  */
 
@@ -85,40 +93,186 @@ public class BlacklistActivity extends ListActivity
 							   PACKAGE = BlacklistActivity.class.getPackage().getName();
 
 	private Preferences mPrefs;
-	private static ArrayList<AppInfo> mApps;
+	private IconCache mIcons;
+	private Blacklist mBlacklist;
+	private AppCatalog mCatalog;
+	private ArrayList<AppInfo> mApps;
+
+	// Loading task, and the catalog generation it loaded.
+	private GetAppsTask mTask;
+	private int mGeneration = -1;
+	private boolean mResumed = false;
+
+	// Whether the app at each position is blacklisted.
+	private BitSet mChecked = new BitSet();
+
+	// Built once every application has loaded.
+	private AppIndex mIndex;
+	private AppAdapter mAdapter;
 
 	/** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState)
     {
 		mPrefs = Preferences.getInstance(this);
+		mIcons = IconCache.getInstance(this);
+		mBlacklist = Blacklist.getInstance(this);
+		mCatalog = AppCatalog.getInstance(this);
 
 		super.onCreate(savedInstanceState);
         setContentView(R.layout.icons);
 
 		// Get the list of applications.
-		(new GetAppsTask()).execute();
+		loadApps();
+	}
+
+	@Override
+	public void onResume()
+	{
+		super.onResume();
+		mResumed = true;
+
+		// Reload if a package changed while paused.
+		mCatalog.registerOnCatalogChangedListener(mCatalogListener);
+		if (mGeneration != mCatalog.getGeneration()) loadApps();
+	}
+
+	@Override
+	public void onPause()
+	{
+		super.onPause();
+		mResumed = false;
+		mCatalog.unregisterOnCatalogChangedListener(mCatalogListener);
+	}
+
+	@Override
+	public void onDestroy()
+	{
+		super.onDestroy();
+		if (mTask != null) mTask.cancel(false);
+	}
+
+	@Override
+	public void onLowMemory()
+	{
+		super.onLowMemory();
+
+		// Icons will be read back from disk as needed, and so
+		// will the catalog, this list holds what is on screen.
+		mIcons.trimMemory();
+		mCatalog.trimMemory();
+	}
+
+	/**
+	 * Reloads the list when a package is installed,
+	 * removed or replaced while it is shown.
+	 */
+	private final AppCatalog.OnCatalogChangedListener mCatalogListener =
+		new AppCatalog.OnCatalogChangedListener()
+	{
+		@Override
+		public void onCatalogChanged(AppCatalog mChanged)
+		{
+			if (mResumed && mGeneration != mChanged.getGeneration())
+				loadApps();
+		}
+	};
+
+	/**
+	 * Load the list of applications, replacing any load in progress.
+	 */
+	private final void loadApps()
+	{
+		if (mTask != null) mTask.cancel(false);
+		mGeneration = mCatalog.getGeneration();
+		mTask = new GetAppsTask();
+		mTask.execute();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu)
+	{
+		getMenuInflater().inflate(R.menu.blacklist, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item)
+	{
+		switch (item.getItemId())
+		{
+			case R.id.menu_hide_all:
+				applyToShown(BULK_HIDE);
+				return true;
+			case R.id.menu_show_all:
+				applyToShown(BULK_SHOW);
+				return true;
+			case R.id.menu_invert:
+				applyToShown(BULK_INVERT);
+				return true;
+		}
+
+		return super.onOptionsItemSelected(item);
+	}
+
+	// Bulk operations for {@link applyToShown}.
+	private static final int BULK_HIDE = 0,
+							 BULK_SHOW = 1,
+							 BULK_INVERT = 2;
+
+	/**
+	 * Hide, show or invert every application currently shown, which
+	 * is all of them or those matching the filter, ie. typing "game".
+	 * Checks are changed in place and {@link Blacklist} is written once.
+	 */
+	private final void applyToShown(int mOperation)
+	{
+		if (mAdapter == null) return;
+
+		final ArrayList<String> mHidden = new ArrayList<String>(),
+								mShown = new ArrayList<String>();
+		for (int i = 0, e = mAdapter.getCount(); i < e; ++i)
+		{
+			final int mPosition = mAdapter.toListPosition(i);
+			final boolean mHide = (mOperation == BULK_INVERT) ?
+				!mChecked.get(mPosition) : (mOperation == BULK_HIDE);
+			if (mHide == mChecked.get(mPosition)) continue;
+
+			mChecked.set(mPosition, mHide);
+			if (mHide) mHidden.add(mApps.get(mPosition).getPackageName());
+			else	   mShown.add(mApps.get(mPosition).getPackageName());
+		}
+
+		if (mHidden.isEmpty() && mShown.isEmpty()) return;
+		mAdapter.notifyDataSetChanged();
+		mBlacklist.update(mHidden, mShown);
 	}
 
 	/**
 	 * {@link AsyncTask} used for retreiving the list of applications
 	 * and setting the {@link Adapter} for this {@link ListActivity}.
+	 * Applications are streamed in as sorted chunks and merged into
+	 * the list so the first rows show before everything is loaded.
+	 * {@link Blacklist} is read once, before the first chunk.
 	 */
 	private final class GetAppsTask
-		extends AsyncTask<Void, Void, Void>
+		extends AsyncTask<Void, Chunk, Void>
+		implements Preferences.OnAppsLoadedListener
 	{
-		protected Void doInBackground(Void... nothing)
-		{
-			if (mApps == null) mApps = mPrefs.getApps(true);
-			return null;
-		}
+		private final AppComparator mComparator = new AppComparator();
+		private long mStart, mFirstRow = -1;
 
-		protected void onProgressUpdate(Void... progress) {}
+		// Blacklisted packages, sorted, read in the background.
+		private volatile String[] mHidden;
 
-		protected void onPostExecute(Void result)
+		protected void onPreExecute()
 		{
-			final AppAdapter mAdapter =
-				new AppAdapter(getBaseContext(), R.id.item_text, mApps);
+			mStart = SystemClock.uptimeMillis();
+			mApps = new ArrayList<AppInfo>();
+			mChecked = new BitSet();
+			mIndex = null;
+			mAdapter = new AppAdapter(getBaseContext(), R.id.item_text, mApps);
+			mAdapter.setNotifyOnChange(false);
 
 			// Bind to our new adapter.
 		    setListAdapter(mAdapter);
@@ -129,81 +283,183 @@ public class BlacklistActivity extends ListActivity
 
 			// Get rid of the overscroll glow.
 			WPThemeView.setOverScrollMode(getListView(), WPThemeView.OVER_SCROLL_NEVER);
+
+			// Jump by letter and filter by typing.
+			getListView().setFastScrollEnabled(true);
+			getListView().setTextFilterEnabled(true);
+		}
+
+		protected Void doInBackground(Void... nothing)
+		{
+			mHidden = mBlacklist.getPackages();
+
+			// The catalog is kept up to date and tells us when it
+			// changes, so there is no need to hold on to a stale list.
+			mCatalog.getApps(this);
+			return null;
+		}
+
+		// Called from worker threads.
+		public void onAppsLoaded(ArrayList<AppInfo> mChunk)
+		{
+			publishProgress(new Chunk(mChunk));
 		}
-	}
 
+		protected void onProgressUpdate(Chunk... mChunks)
+		{
+			// Replaced by a newer load.
+			if (mTask != this) return;
+
+			// Merge the sorted chunks into the sorted list, moving
+			// the checks along so any made meanwhile are kept.
+			for (Chunk mChunk : mChunks)
+			{
+				final ArrayList<AppInfo> mNew = mChunk.mApps;
+				final ArrayList<AppInfo> mMerged =
+					new ArrayList<AppInfo>(mApps.size() + mNew.size());
+				final BitSet mBits = new BitSet(mApps.size() + mNew.size());
+				int i = 0, j = 0;
+				while (i < mApps.size() || j < mNew.size())
+				{
+					if (j == mNew.size() || (i < mApps.size() &&
+						mComparator.compare(mApps.get(i), mNew.get(j)) <= 0))
+					{
+						if (mChecked.get(i)) mBits.set(mMerged.size());
+						mMerged.add(mApps.get(i++));
+					}
+					else
+					{
+						final AppInfo mApp = mNew.get(j++);
+						if (Arrays.binarySearch(mHidden, mApp.getPackageName()) >= 0)
+							mBits.set(mMerged.size());
+						mMerged.add(mApp);
+					}
+				}
+
+				mApps.clear();
+				mApps.addAll(mMerged);
+				mChecked = mBits;
+			}
+
+			mAdapter.notifyDataSetChanged();
+
+			if (mFirstRow < 0)
+			{
+				mFirstRow = SystemClock.uptimeMillis() - mStart;
+				Log.v(TAG, "First apps shown in " + mFirstRow + "ms.");
+			}
+		}
+
+		protected void onPostExecute(Void result)
+		{
+			if (mTask != this) return;
+
+			Log.v(TAG, "Loaded " + mApps.size() + " apps in " +
+				(SystemClock.uptimeMillis() - mStart) + "ms.");
+
+			// The list is final now, index it.
+			(new IndexTask(mApps)).execute();
+		}
+	}
 
 	/**
-	 * @return A TextView styled to look
+	 * A chunk of sorted applications, published by {@link GetAppsTask}.
 	 */
-	public final WPTextView getLetterTextView(String letter)
+	private static final class Chunk
 	{
-		// Create the click listener if not done already.
-		if (mLetterClickListener == null)
-			mLetterClickListener = new LetterClickListener(this);
-
-		final WPTextView mTV = new WPTextView(this);
-		mTV.setBackgroundColor(WPTheme.getAccentColor());
-		mTV.setText(letter);
-		mTV.setTag((Character) letter.charAt(0));
-		mTV.setOnClickListener(mLetterClickListener);
-		mTV.setTextColor(Color.WHITE);
-		mTV.setTextSize(TypedValue.COMPLEX_UNIT_DIP, 28);
-		mTV.setGravity(Gravity.BOTTOM | Gravity.LEFT);
-		mTV.setSingleLine();
-		mTV.setPadding(4, 4, 4, 4);
-		return mTV;
-	}
+		private final ArrayList<AppInfo> mApps;
 
-	private LetterClickListener mLetterClickListener;
+		public Chunk(ArrayList<AppInfo> mApps)
+		{
+			this.mApps = mApps;
+		}
+	}
 
 	/**
-	 * Listener for when a letter is clicked.
+	 * {@link AsyncTask} that builds the {@link AppIndex} for
+	 * the loaded list, then applies anything typed meanwhile.
 	 */
-	public static final class LetterClickListener
-		implements View.OnClickListener
+	private final class IndexTask extends AsyncTask<Void, Void, AppIndex>
 	{
-		private final Context mContext;
+		private final ArrayList<AppInfo> mList;
+		private long mStart;
 
-		public LetterClickListener(Context mContext)
+		public IndexTask(ArrayList<AppInfo> mList)
 		{
-			this.mContext = mContext;
+			this.mList = mList;
 		}
 
-		@Override
-		public void onClick(View mView)
+		protected void onPreExecute()
 		{
-			final WPJumpView mJump = new WPJumpView(mContext);
-			mJump.show();
+			mStart = SystemClock.uptimeMillis();
+		}
+
+		protected AppIndex doInBackground(Void... nothing)
+		{
+			return new AppIndex(mList);
+		}
+
+		protected void onPostExecute(AppIndex mResult)
+		{
+			// The list was replaced meanwhile.
+			if (mList != mApps) return;
+
+			Log.v(TAG, "Indexed apps in " + (SystemClock.uptimeMillis() - mStart) + "ms.");
+			mIndex = mResult;
+
+			// Fast scrolling only reads the sections when enabled.
+			getListView().setFastScrollEnabled(false);
+			getListView().setFastScrollEnabled(true);
+
+			final CharSequence mFilter = getListView().getTextFilter();
+			if (mFilter != null && mFilter.length() > 0)
+				mAdapter.getFilter().filter(mFilter);
+			else
+				mAdapter.notifyDataSetChanged();
 		}
 	}
 
+
 	// Handle click events here.
 	@Override
 	public void onListItemClick(ListView parent, View view,
 		int position, long id)
 	{
-		// Get the tag of the item.
-		final TextView mTV = (TextView)
-			view.findViewById(R.id.item_text);
+		final ViewHolder mHolder = (ViewHolder) view.getTag();
+		position = mAdapter.toListPosition(position);
 		final String mPackage = mApps.get(position).getPackageName();
-		final Checkable mCheck = (Checkable)
-			view.findViewById(R.id.item_check);
-		
+
 		// Toggle the check box and update the settings.
-		mCheck.toggle();
-		mPrefs.setBoolean(mPackage, mCheck.isChecked());
+		mChecked.flip(position);
+		mHolder.mCheck.setChecked(mChecked.get(position));
+		mBlacklist.set(mPackage, mChecked.get(position));
+	}
+
+	/**
+	 * Views of a row, found once when it is inflated.
+	 */
+	private static final class ViewHolder
+	{
+		TextView mText;
+		ImageView mIcon;
+		Checkable mCheck;
 	}
 
 	/**
 	 * {@link Adapter} that sets the text and the tag of the view based
 	 * on the application's preferences. Includes a check box for each
-	 * item that can be toggled by clicking the entire item.
+	 * item that can be toggled by clicking the entire item. While
+	 * filtered only the matching positions of the list are shown.
 	 */
 	private final class AppAdapter extends ArrayAdapter<AppInfo>
+		implements SectionIndexer, Filterable
 	{
         private ArrayList<AppInfo> mItems;
 		private final LayoutInflater mLI;
+		private final AppFilter mFilter = new AppFilter();
+
+		// Positions in the list that match the filter, or null.
+		private int[] mVisible;
 
         public AppAdapter(Context context, int textViewResourceId, ArrayList<AppInfo> mItems)
 		{
@@ -212,29 +468,116 @@ public class BlacklistActivity extends ListActivity
 				mLI = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         }
 
+		/**
+		 * @return The position within {@link mApps} of a row.
+		 */
+		public final int toListPosition(int position)
+		{
+			return (mVisible == null) ? position : mVisible[position];
+		}
+
+		@Override
+		public int getCount()
+		{
+			return (mVisible == null) ? mItems.size() : mVisible.length;
+		}
+
+		@Override
+		public AppInfo getItem(int position)
+		{
+			return mItems.get(toListPosition(position));
+		}
+
+		@Override
+		public long getItemId(int position)
+		{
+			return toListPosition(position);
+		}
+
+		@Override
+		public Object[] getSections()
+		{
+			return (mIndex == null) ? new String[0] : mIndex.getSections();
+		}
+
+		@Override
+		public int getPositionForSection(int section)
+		{
+			if (mIndex == null) return 0;
+			final int mPosition = mIndex.getPositionForSection(section);
+			if (mVisible == null) return mPosition;
+
+			// The first match at or after the section.
+			int mRow = Arrays.binarySearch(mVisible, mPosition);
+			if (mRow < 0) mRow = -(mRow + 1);
+			return Math.min(mRow, Math.max(0, mVisible.length - 1));
+		}
+
+		@Override
+		public int getSectionForPosition(int position)
+		{
+			if (mIndex == null || getCount() == 0) return 0;
+			return mIndex.getSectionForPosition(toListPosition(position));
+		}
+
+		@Override
+		public Filter getFilter()
+		{
+			return mFilter;
+		}
+
+		/**
+		 * Filters with {@link AppIndex}, each keystroke is a walk
+		 * down the trie rather than a pass over every label.
+		 */
+		private final class AppFilter extends Filter
+		{
+			@Override
+			protected FilterResults performFiltering(CharSequence mPrefix)
+			{
+				final FilterResults mResults = new FilterResults();
+				final AppIndex mCurrent = mIndex;
+				final int[] mMatches = (mCurrent == null) ? null : mCurrent.search(mPrefix);
+				mResults.values = mMatches;
+				mResults.count = (mMatches == null) ? -1 : mMatches.length;
+				return mResults;
+			}
+
+			@Override
+			protected void publishResults(CharSequence mPrefix, FilterResults mResults)
+			{
+				mVisible = (int[]) mResults.values;
+				notifyDataSetChanged();
+			}
+		}
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent)
 		{
-			// Get the layout.
+			// Get the layout, and its views.
             RelativeLayout mLayout = null;
+			ViewHolder mHolder = null;
             if (convertView == null)
+			{
                 mLayout = (RelativeLayout) mLI.inflate(R.layout.app_item, null);
+				mHolder = new ViewHolder();
+				mHolder.mText = (TextView) mLayout.findViewById(R.id.item_text);
+				mHolder.mIcon = (ImageView) mLayout.findViewById(R.id.item_icon);
+				mHolder.mCheck = (Checkable) mLayout.findViewById(R.id.item_check);
+				mLayout.setTag(mHolder);
+			}
             else
+			{
 				mLayout = (RelativeLayout) convertView;
+				mHolder = (ViewHolder) mLayout.getTag();
+			}
 
-			// Set the text and tag of the item.
-			final String mName = mItems.get(position).getName();
-			final String mPackage = mItems.get(position).getPackageName();
-			final Drawable mIcon = mItems.get(position).getIcon();
-			final TextView mTV = (TextView)
-				mLayout.findViewById(R.id.item_text);
-			final ImageView mIV = (ImageView)
-				mLayout.findViewById(R.id.item_icon);
-			mTV.setText(mName);
-			mIV.setImageDrawable(mIcon);
-			final Checkable mCheck = (Checkable)
-				mLayout.findViewById(R.id.item_check);
-			mCheck.setChecked(mPrefs.getBoolean(mPackage, false));
+			// Set the text, icon and check of the item.
+			position = toListPosition(position);
+			final AppInfo mApp = mItems.get(position);
+			mHolder.mText.setText(mApp.getName());
+			mIcons.load(mApp, mHolder.mIcon);
+			mHolder.mCheck.setChecked(mChecked.get(position));
 
             return mLayout;
         }
@@ -42,7 +42,7 @@ public class BootReceiver extends BroadcastReceiver
 	private static final String ACTION_MY_PACKAGE_REPLACED = "android.intent.action.MY_PACKAGE_REPLACED";
 
 	@Override
-	public void onReceive(Context context, Intent intent)
+	public void onReceive(final Context context, Intent intent)
 	{
 		// Check preferences to see if we should start on boot.
 		final Preferences mPrefs = Preferences.getInstance(context);
@@ -53,13 +53,23 @@ public class BootReceiver extends BroadcastReceiver
 		if (mAction == null) return;
 
 		// Get the intent to start the service.
-		final Intent mServiceIntent = new Intent();
-		mServiceIntent.setClassName(BarService.PACKAGE, BarService.PACKAGE + "." + BarService.TAG);
+		final Intent mServiceIntent = mPrefs.getServiceIntent();
 
 		// Start on boot if set to do so, or if the app is replaced.
 		if ((mPrefs.isSetOnBoot() &&
 			mAction.equals(Intent.ACTION_BOOT_COMPLETED)) ||
 			mAction.equals(ACTION_MY_PACKAGE_REPLACED))
 			context.startService(mServiceIntent);
+
+		// Applications may have changed while we could not listen.
+		// Only compare version codes, this does not block the service.
+		new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				AppCatalog.getInstance(context).sync();
+			}
+		}).start();
 	}
 }
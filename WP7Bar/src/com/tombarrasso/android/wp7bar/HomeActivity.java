@@ -20,12 +20,17 @@ package com.tombarrasso.android.wp7bar;
 
 // Android Packages
 import android.app.Activity;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.ServiceConnection;
 import android.content.ComponentName;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.util.Log;
 import android.app.Dialog;
 import android.os.IBinder;
@@ -60,11 +65,15 @@ import afzkl.development.mColorPicker.views.ColorPickerView.OnColorChangedListen
 /**
  * This {@link Activity} manages the preferences for the
  * applications and talks to the GUI. It handles click
- * events and starts the corresponding service or change in UI.
+ * events and starts the corresponding service or change in UI.<br /><br />
+ * <ul>
+ *	<li>Only the settings pivot is set up before the first frame, the service state, change log and about pivot follow in a {@link DeferredTask}.</li>
+ *	<li>Time to the first frame and to interactive are logged.</li>
+ * </ul>
  *
  * @author		Thomas James Barrasso <contact @ tombarrasso.com>
  * @since		10-13-2011
- * @version		1.0
+ * @version		1.01
  * @category	{@link Activity}
  */
 
@@ -75,7 +84,6 @@ public class HomeActivity extends WPActivity
 
 	// George Orwell would be proud.
 	private static final int DIALOG_CHANGELOG = 1984;
-	private final Intent mServiceIntent = new Intent();
 
 	// Pivot screen iDs.
 	private static final int SCREEN_ONE = 0,
@@ -94,6 +102,7 @@ public class HomeActivity extends WPActivity
 				 mAppsToggle,
 				 mAppHideToggle,
 				 mSwipeToggle,
+				 mProcessToggle,
 				 mChangeLog;
 	private TextView mAbout;
 	private Spinner mDropSpinner;
@@ -102,6 +111,11 @@ public class HomeActivity extends WPActivity
 	// Preferences and service,
 	private Preferences mPrefs;
 	private boolean mIsBound = false;
+	private boolean mDestroyed = false;
+
+	// Startup work done after the first frame, and when it began.
+	private DeferredTask mDeferred;
+	private long mCreateStart;
 
 	/**
 	 * Recursively set the text of all {@link TextView}s.
@@ -126,13 +140,14 @@ public class HomeActivity extends WPActivity
     @Override
     public void onCreate(Bundle savedInstanceState)
     {
+		mCreateStart = SystemClock.uptimeMillis();
+
 		// This NEEDS to be in the initial activity
 		// to avoid themeColor being null.
 		WPTheme.setDefaultThemeColor();
 	
 		super.shouldRemoveStatusBarListeners(false);
 
-		mServiceIntent.setClassName(BarService.PACKAGE, BarService.PACKAGE + "." + BarService.TAG);
 		mPrefs = Preferences.getInstance(this);
 
         super.onCreate(savedInstanceState);
@@ -172,6 +187,7 @@ public class HomeActivity extends WPActivity
 		mAppsToggle = findViewById(R.id.apps_toggle);
 		mAppHideToggle = findViewById(R.id.hide_toggle);
 		mSwipeToggle = findViewById(R.id.swipe_toggle);
+		mProcessToggle = findViewById(R.id.process_toggle);
 		mDropSpinner = (Spinner) findViewById(R.id.drop_spinner);
 		mChangeLog = findViewById(R.id.changelog);
 		mAbout = (TextView) findViewById(R.id.about_description);
@@ -210,9 +226,9 @@ public class HomeActivity extends WPActivity
 		mBackColorView.setOnClickListener(mColorClick);
 		mIconColorView.setOnClickListener(mColorClick);
 
-		// Set initially whether or not the service is running.
-		if (mEnableToggle instanceof Checkable)
-			((Checkable) mEnableToggle).setChecked((mIsBound) ? mIsBound : mPrefs.isServiceRunning());
+		// Whether the service is running is not known until
+		// the DeferredTask is done, so do not allow toggling it.
+		mEnableToggle.setEnabled(false);
 
 		// Set initially whether or not swipe is enabled.
 		if (mSwipeToggle instanceof Checkable)
@@ -235,12 +251,16 @@ public class HomeActivity extends WPActivity
 
 		// Set initially whether or expansion is automatically disabled.
 		if (mExpandToggle instanceof Checkable)
-			((Checkable) mEnableToggle).setChecked((mIsBound) ? mIsBound : mPrefs.isServiceRunning());
+			((Checkable) mExpandToggle).setChecked(mPrefs.isExpandDisabled());
 		
 		// Set initially whether or not to set on boot.
 		if (mBootToggle instanceof Checkable)
 			((Checkable) mBootToggle).setChecked(mPrefs.isSetOnBoot());
 
+		// Set initially whether or not to run in our process.
+		if (mProcessToggle instanceof Checkable)
+			((Checkable) mProcessToggle).setChecked(mPrefs.isServiceLocal());
+
 		// Set initially whether or not to set on boot.
 		if (mDropToggle instanceof Checkable)
 			((Checkable) mDropToggle).setChecked(mPrefs.isDropEnabled());
@@ -252,10 +272,6 @@ public class HomeActivity extends WPActivity
 		// Set these listeners AFTER determing the initial values,
 		// lest we end up with an infinite loop!
 
-		// If it is a check box listen for its changes.
-		if (mEnableToggle instanceof CompoundButton)
-			((CompoundButton) mEnableToggle).setOnCheckedChangeListener(mCheckListener);
-
 		// If it is a check box listen for its changes.
 		if (mBootToggle instanceof CompoundButton)
 			((CompoundButton) mBootToggle).setOnCheckedChangeListener(mBootListener);
@@ -276,29 +292,98 @@ public class HomeActivity extends WPActivity
 		if (mSwipeToggle instanceof CompoundButton)
 			((CompoundButton) mSwipeToggle).setOnCheckedChangeListener(mSwipeListener);
 
-		// Display Change Log.
-		final Changelog mChangelog = new Changelog(this);
-		if (mChangelog.firstRun())
+		// If it is a check box listen for its changes.
+		if (mProcessToggle instanceof CompoundButton)
+			((CompoundButton) mProcessToggle).setOnCheckedChangeListener(mProcessListener);
+
+		// Everything else waits until the settings are drawn.
+		getWindow().getDecorView().getViewTreeObserver()
+			.addOnPreDrawListener(mFirstFrameListener);
+    }
+
+	/**
+	 * Called before the settings pivot is first drawn, starts
+	 * the {@link DeferredTask} once that frame is out of the way.
+	 */
+	private final ViewTreeObserver.OnPreDrawListener mFirstFrameListener =
+		new ViewTreeObserver.OnPreDrawListener()
+	{
+		@Override
+		public boolean onPreDraw()
 		{
-			// Attach listener to show vibration dialog.
-			showDialog(DIALOG_CHANGELOG);
-		}
+			final View mDecor = getWindow().getDecorView();
+			mDecor.getViewTreeObserver().removeOnPreDrawListener(this);
+			if (mDeferred != null) return true;
 
-		// Make description links clickable.
-		mAbout.setMovementMethod(LinkMovementMethod.getInstance());
+			Log.v(TAG, "Settings drawn in " +
+				(SystemClock.uptimeMillis() - mCreateStart) + "ms.");
 
-		// When clicked, display the change log.
-		mChangeLog.setOnClickListener(
-			new View.OnClickListener()
+			mDeferred = new DeferredTask();
+			mDecor.post(new Runnable()
 			{
 				@Override
-				public void onClick(View mView)
+				public void run()
 				{
-					showDialog(DIALOG_CHANGELOG);
-				}			
-			}
-		);
-    }
+					if (!mDestroyed && !isFinishing()) mDeferred.execute();
+				}
+			});
+			return true;
+		}
+	};
+
+	/**
+	 * {@link AsyncTask} for the startup work that is not needed
+	 * to show the settings: whether the service is running, whether
+	 * the change log should be shown, and the about pivot. Lookups
+	 * are made in the background, views are set up afterwards.
+	 */
+	private final class DeferredTask extends AsyncTask<Void, Void, Boolean[]>
+	{
+		protected Boolean[] doInBackground(Void... nothing)
+		{
+			final boolean mRunning = (mIsBound) ? mIsBound : mPrefs.isServiceRunning();
+			final boolean mFirstRun = (new Changelog(HomeActivity.this)).firstRun();
+			return new Boolean[] { mRunning, mFirstRun };
+		}
+
+		protected void onPostExecute(Boolean[] mResult)
+		{
+			// The activity may have been destroyed for a configuration
+			// change, which isFinishing() does not report, and cancel()
+			// does not stop this once the background work is done.
+			if (mDestroyed || isCancelled() || isFinishing()) return;
+
+			// Set initially whether or not the service is running,
+			// then listen for changes, lest we end up in a loop.
+			if (mEnableToggle instanceof Checkable)
+				((Checkable) mEnableToggle).setChecked(mResult[0].booleanValue());
+			if (mEnableToggle instanceof CompoundButton)
+				((CompoundButton) mEnableToggle).setOnCheckedChangeListener(mCheckListener);
+			mEnableToggle.setEnabled(true);
+
+			// Make description links clickable.
+			mAbout.setMovementMethod(LinkMovementMethod.getInstance());
+
+			// When clicked, display the change log.
+			mChangeLog.setOnClickListener(
+				new View.OnClickListener()
+				{
+					@Override
+					public void onClick(View mView)
+					{
+						showDialog(DIALOG_CHANGELOG);
+					}			
+				}
+			);
+
+			Log.v(TAG, "Interactive in " +
+				(SystemClock.uptimeMillis() - mCreateStart) + "ms.");
+
+			// Display Change Log.
+			if (mResult[1].booleanValue())
+				showDialog(DIALOG_CHANGELOG);
+		}
+	}
 
 	public static final SpinnerListener mSpinnerListener = new SpinnerListener();
 	public static final class SpinnerListener implements OnItemSelectedListener
@@ -369,6 +454,29 @@ public class HomeActivity extends WPActivity
 		}
 	};
 
+	/**
+	 * Listener for a live preview of the background
+	 * color while the user is still dragging.
+	 */
+	private final OnColorChangedListener mBackgroundPreviewListener = 
+		new OnColorChangedListener()
+	{
+		@Override
+		public void onColorChanged(int color)
+		{
+			mBackgroundDisplay.setBackgroundColor(color);
+
+			// Push the color to the running bar, if bound.
+			final IStatusBarService mService = mConnection.getService();
+			if (mService == null) return;
+			try
+			{
+				mService.previewBackgroundColor(color);
+			}
+			catch (RemoteException e) {}
+		}
+	};
+
 	/**
 	 * Listener for when an icon color change has occured.
 	 */
@@ -385,6 +493,29 @@ public class HomeActivity extends WPActivity
 		}
 	};
 
+	/**
+	 * Listener for a live preview of the icon
+	 * color while the user is still dragging.
+	 */
+	private final OnColorChangedListener mIconPreviewListener = 
+		new OnColorChangedListener()
+	{
+		@Override
+		public void onColorChanged(int color)
+		{
+			mIconDisplay.setBackgroundColor(color);
+
+			// Push the color to the running bar, if bound.
+			final IStatusBarService mService = mConnection.getService();
+			if (mService == null) return;
+			try
+			{
+				mService.previewIconColor(color);
+			}
+			catch (RemoteException e) {}
+		}
+	};
+
 	/**
 	 * Listener for when one of the two color
 	 * preferences has been clicked.
@@ -400,6 +531,7 @@ public class HomeActivity extends WPActivity
 			{
 				final ColorPickerDialog dialog = new ColorPickerDialog(HomeActivity.this, mPrefs.getBackgroundColor());
 				dialog.setOnColorChangedListener(mBackgroundListener);
+				dialog.setOnColorPreviewListener(mBackgroundPreviewListener);
 				dialog.show();
 			}
 			// Icon Color
@@ -407,6 +539,7 @@ public class HomeActivity extends WPActivity
 			{
 				final ColorPickerDialog dialog = new ColorPickerDialog(HomeActivity.this, mPrefs.getIconColor());
 				dialog.setOnColorChangedListener(mIconListener);
+				dialog.setOnColorPreviewListener(mIconPreviewListener);
 				dialog.show();
 			}
 		}
@@ -451,32 +584,84 @@ public class HomeActivity extends WPActivity
 			// Toggle the service based on the checkbox.
 			final boolean mServiceRunning = mPrefs.isServiceRunning();
 			if (!mServiceRunning)
+				startBar();
+			else
+				stopBar();
+		}
+	};
+
+	/**
+	 * Starts and binds to the status bar service.
+	 */
+	private final void startBar()
+	{
+		final Intent mServiceIntent = mPrefs.getServiceIntent();
+		startService(mServiceIntent);
+		bindService(mServiceIntent, mConnection, 0);
+		mIsBound = true;
+	}
+
+	/**
+	 * Destroys and stops the status bar service.
+	 */
+	private final void stopBar()
+	{
+		// Surrounded in the case that the service
+		// has not actually been bound to.
+		try {
+			// Remember to destroy our resources.
+			if (mConnection != null) {
+				final IStatusBarService mService =
+					mConnection.getService();
+				if (mService != null) mService.destroy();
+				if (mIsBound) unbindService(mConnection);
+			}
+			stopService(mPrefs.getServiceIntent());
+			mIsBound = false;
+		}
+		catch(IllegalArgumentException e) {}
+		catch(RemoteException re) {}
+
+		if (mConnection != null)
+			mConnection.nullifyService();
+	}
+
+	/**
+	 * Listener for when the checkbox is checked/ unchecked.
+	 * Moves a running status bar to the chosen process.
+ 	 */
+	private final OnCheckedChangeListener mProcessListener =
+		new OnCheckedChangeListener()
+	{
+		public void onCheckedChanged(
+			CompoundButton buttonView, boolean isChecked)
+		{
+			if (!mPrefs.isServiceRunning())
 			{
-				startService(mServiceIntent);
-				bindService(mServiceIntent, mConnection, 0);
-				mIsBound = true;
+				mPrefs.setServiceLocal(isChecked);
+				return;
 			}
-			else
+
+			// Wait for the old service to be gone before starting
+			// the new one, lest its disabled broadcast come last.
+			// This is registered on the application so the new one
+			// is still started if we are destroyed meanwhile.
+			final Context mApp = getApplicationContext();
+			mApp.registerReceiver(new BroadcastReceiver()
 			{
-				// Surrounded in the case that the service
-				// has not actually been bound to.
-				try {
-					// Remember to destroy our resources.
-					if (mConnection != null) {
-						final IStatusBarService mService =
-							mConnection.getService();
-						if (mService != null) mService.destroy();
-						if (mIsBound) unbindService(mConnection);
-					}
-					stopService(mServiceIntent);
-					mIsBound = false;
+				@Override
+				public void onReceive(Context context, Intent intent)
+				{
+					mApp.unregisterReceiver(this);
+					if (mDestroyed)
+						mApp.startService(mPrefs.getServiceIntent());
+					else
+						startBar();
 				}
-				catch(IllegalArgumentException e) {}
-				catch(RemoteException re) {}
+			}, new IntentFilter(BarService.ACTION_DISABLED));
 
-				if (mConnection != null)
-					mConnection.nullifyService();
-			}
+			stopBar();
+			mPrefs.setServiceLocal(isChecked);
 		}
 	};
 
@@ -533,10 +718,23 @@ public class HomeActivity extends WPActivity
 		}
 	};
 
+	@Override
+	public void onLowMemory()
+	{
+		super.onLowMemory();
+
+		// Both are read back from disk when needed.
+		AppCatalog.getInstance(this).trimMemory();
+		IconCache.getInstance(this).trimMemory();
+	}
+
 	@Override
 	public void onDestroy()
 	{
 		super.onDestroy();
+		mDestroyed = true;
+
+		if (mDeferred != null) mDeferred.cancel(false);
 
 		if (mConnection.getService() != null)
 		{
@@ -23,6 +23,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.app.ListActivity;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.content.Intent;
 import android.view.View;
 import android.view.ViewGroup;
@@ -50,15 +51,21 @@ import java.util.List;
 // UI Packages
 import com.tombarrasso.android.wp7ui.widget.WPThemeView;
 
+// App Packages
+import com.tombarrasso.android.wp7bar.HomeActivity.BarServiceConnection;
+
 /**
  * This {@link Activity} manages which icons are displayed
  * and which are not by filling a {@link ListView} with every
  * given icon name with a checkbox that allows it to be toggled
- * on and off.
+ * on and off.<br /><br />
+ * <ul>
+ *	<li>Toggles are pushed to the running status bar through {@link IStatusBarService}.</li>
+ * </ul>
  *
  * @author		Thomas James Barrasso <contact @ tombarrasso.com>
  * @since		09-17-2011
- * @version		1.0
+ * @version		1.01
  * @category	{@link Activity}
  */
 
@@ -69,6 +76,11 @@ public class IconActivity extends ListActivity
 
 	private Preferences mPrefs;
 
+	// Connection to the running status bar, if any.
+	private final BarServiceConnection mConnection =
+		new BarServiceConnection();
+	private boolean mIsBound = false;
+
 	/** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState)
@@ -91,6 +103,25 @@ public class IconActivity extends ListActivity
 
 		// Get rid of the overscroll glow.
 		WPThemeView.setOverScrollMode(getListView(), WPThemeView.OVER_SCROLL_NEVER);
+
+		// Bind to the status bar, only if it is running.
+		mIsBound = bindService(mPrefs.getServiceIntent(), mConnection, 0);
+	}
+
+	@Override
+	public void onDestroy()
+	{
+		super.onDestroy();
+
+		if (mIsBound)
+		{
+			try {
+				unbindService(mConnection);
+			}
+			catch(IllegalArgumentException e) {}
+			mIsBound = false;
+			mConnection.nullifyService();
+		}
 	}
 
 	// Handle click events here.
@@ -108,6 +139,15 @@ public class IconActivity extends ListActivity
 		// Toggle the check box and update the settings.
 		mCheck.toggle();
 		mPrefs.setBoolean(mKey, mCheck.isChecked());
+
+		// Show the change in the running bar right away.
+		final IStatusBarService mService = mConnection.getService();
+		if (mService == null) return;
+		try
+		{
+			mService.setIconMask(mPrefs.getIconMask());
+		}
+		catch (RemoteException e) {}
 	}
 
 	private static final ArrayList<String> mTextTag =
@@ -0,0 +1,262 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * IconCache.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Android Packages
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.ImageView;
+
+// Java Packages
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// App Packages
+import com.tombarrasso.android.wp7bar.Preferences.AppInfo;
+
+/**
+ * Two-level cache of down-scaled application icons. The first
+ * level is a bounded, least recently used map of {@link Bitmap}s
+ * in memory; the second is a directory of PNGs in the cache
+ * directory keyed by package name and version code, so an icon
+ * is only rendered from {@link PackageManager} once per version.
+ * Icons are loaded on a background thread and delivered to the
+ * {@link ImageView} that asked for them, if it still wants them.
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-06-2011
+ * @version		1.0
+ * @category	Static Utility
+ */
+
+public final class IconCache
+{
+	public static final String TAG = IconCache.class.getSimpleName(),
+							   PACKAGE = IconCache.class.getPackage().getName();
+
+	// Directory, inside the cache directory, holding icons.
+	private static final String DIRECTORY = "icons";
+
+	// Fraction of the heap the memory cache may occupy.
+	private static final int HEAP_FRACTION = 16;
+
+	private static IconCache mInstance;
+
+	private final Context mContext;
+	private final PackageManager mPackageManager;
+	private final File mDirectory;
+	private final int mSize;
+	private final long mMaxBytes;
+	private long mBytes = 0;
+
+	private final Handler mHandler = new Handler();
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+	// Access ordered so that iteration starts at the eldest entry.
+	private final LinkedHashMap<String, Bitmap> mMemory =
+		new LinkedHashMap<String, Bitmap>(64, 0.75f, true);
+
+	private IconCache(Context mContext)
+	{
+		this.mContext = mContext.getApplicationContext();
+		mPackageManager = this.mContext.getPackageManager();
+		mDirectory = new File(this.mContext.getCacheDir(), DIRECTORY);
+		mSize = this.mContext.getResources()
+			.getDimensionPixelSize(android.R.dimen.app_icon_size);
+		mMaxBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+	}
+
+	/**
+	 * Lazily-load an instance of {@link IconCache} statically
+	 * in a Singleton fashion.
+	 */
+	public static final synchronized IconCache getInstance(Context mContext)
+	{
+		if (mInstance == null)
+			mInstance = new IconCache(mContext);
+
+		return mInstance;
+	}
+
+	/**
+	 * @return The key for an application's icon.
+	 */
+	private static final String getKey(AppInfo mApp)
+	{
+		return mApp.getPackageName() + "-" + mApp.getVersionCode();
+	}
+
+	/**
+	 * Display the icon of an application in an {@link ImageView}.
+	 * If the icon is in memory it is set immediately, otherwise
+	 * the view is cleared and the icon is loaded asynchronously.
+	 * Call this from the UI thread only.
+	 */
+	public final void load(final AppInfo mApp, final ImageView mView)
+	{
+		final String mKey = getKey(mApp);
+		mView.setTag(R.id.item_icon, mKey);
+
+		final Bitmap mCached = get(mKey);
+		if (mCached != null)
+		{
+			mView.setImageBitmap(mCached);
+			return;
+		}
+
+		mView.setImageDrawable(null);
+		mExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// The row may have been recycled already.
+				if (!mKey.equals(mView.getTag(R.id.item_icon))) return;
+
+				final Bitmap mBitmap = loadBitmap(mApp, mKey);
+				if (mBitmap == null) return;
+				put(mKey, mBitmap);
+
+				mHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if (mKey.equals(mView.getTag(R.id.item_icon)))
+							mView.setImageBitmap(mBitmap);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Releases every icon held in memory. The disk
+	 * cache is left as is. Call when memory is low.
+	 */
+	public final synchronized void trimMemory()
+	{
+		mMemory.clear();
+		mBytes = 0;
+	}
+
+	/**
+	 * Deletes every cached icon of a package, in memory and
+	 * on disk. Call when it is removed or replaced.
+	 */
+	public final synchronized void remove(String packageName)
+	{
+		final String mPrefix = packageName + "-";
+
+		final Iterator<Map.Entry<String, Bitmap>> mIterator =
+			mMemory.entrySet().iterator();
+		while (mIterator.hasNext())
+		{
+			final Map.Entry<String, Bitmap> mEntry = mIterator.next();
+			if (!mEntry.getKey().startsWith(mPrefix)) continue;
+			mBytes -= getBytes(mEntry.getValue());
+			mIterator.remove();
+		}
+
+		final File[] mFiles = mDirectory.listFiles();
+		if (mFiles == null) return;
+		for (File mFile : mFiles)
+			if (mFile.getName().startsWith(mPrefix))
+				mFile.delete();
+	}
+
+	private final synchronized Bitmap get(String mKey)
+	{
+		return mMemory.get(mKey);
+	}
+
+	private final synchronized void put(String mKey, Bitmap mBitmap)
+	{
+		final Bitmap mOld = mMemory.put(mKey, mBitmap);
+		if (mOld != null) mBytes -= getBytes(mOld);
+		mBytes += getBytes(mBitmap);
+
+		// Evict the least recently used icons.
+		final Iterator<Map.Entry<String, Bitmap>> mIterator =
+			mMemory.entrySet().iterator();
+		while (mBytes > mMaxBytes && mIterator.hasNext())
+		{
+			mBytes -= getBytes(mIterator.next().getValue());
+			mIterator.remove();
+		}
+	}
+
+	private static final long getBytes(Bitmap mBitmap)
+	{
+		return mBitmap.getRowBytes() * mBitmap.getHeight();
+	}
+
+	/**
+	 * @return The icon from disk, or rendered from
+	 * {@link PackageManager} and written to disk.
+	 */
+	private final Bitmap loadBitmap(AppInfo mApp, String mKey)
+	{
+		final File mFile = new File(mDirectory, mKey + ".png");
+		if (mFile.exists())
+		{
+			final Bitmap mBitmap = BitmapFactory.decodeFile(mFile.getPath());
+			if (mBitmap != null) return mBitmap;
+		}
+
+		final Drawable mIcon = mApp.loadIcon(mPackageManager);
+		if (mIcon == null) return null;
+
+		// Scale the icon down to the size it is displayed at.
+		final Bitmap mBitmap = Bitmap.createBitmap(mSize, mSize, Bitmap.Config.ARGB_8888);
+		final Canvas mCanvas = new Canvas(mBitmap);
+		mIcon.setBounds(0, 0, mSize, mSize);
+		mIcon.draw(mCanvas);
+
+		FileOutputStream mOut = null;
+		try
+		{
+			if (!mDirectory.exists()) mDirectory.mkdirs();
+			mOut = new FileOutputStream(mFile);
+			mBitmap.compress(Bitmap.CompressFormat.PNG, 100, mOut);
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Could not cache the icon of " + mApp.getPackageName(), e);
+		}
+		finally
+		{
+			if (mOut != null) try { mOut.close(); } catch (IOException e) {}
+		}
+
+		return mBitmap;
+	}
+}
@@ -0,0 +1,47 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * LocalBarService.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * {@link BarService} hosted in the application's own process rather
+ * than ":remote". This saves a second Dalvik heap along with second
+ * copies of the UI library and {@link Preferences}. Binding to it from
+ * within the application hands back the {@link IStatusBarService.Stub}
+ * itself, so calls are plain method calls instead of binder IPC. It is
+ * used when {@link Preferences#isServiceLocal} is set; other applications
+ * keep binding to {@link BarService}.
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-12-2011
+ * @version		1.0
+ * @category	{@link Service}
+ */
+
+public final class LocalBarService extends BarService
+{
+	/**
+	 * Settings are shared with the rest of the application,
+	 * so there is no need for a {@link SettingsChannel}.
+	 */
+	@Override
+	protected boolean isRemote()
+	{
+		return false;
+	}
+}
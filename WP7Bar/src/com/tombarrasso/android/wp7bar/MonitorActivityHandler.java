@@ -60,13 +60,9 @@ public final class MonitorActivityHandler
 	private static final BarServiceConnection mConnection =
 		new BarServiceConnection();
 
-	private static final Intent mServiceIntent = new Intent();
-	static {
-		mServiceIntent.setClassName(BarService.PACKAGE, BarService.PACKAGE + "." + BarService.TAG);
-	};
-
 	private final Context mContext;
 	private final Preferences mPrefs;
+	private final Blacklist mBlacklist;
 	private String mPackageName, mActivityName;
 	private final Handler mHandler = new Handler();
 
@@ -76,6 +72,7 @@ public final class MonitorActivityHandler
 
 		// Get an instance of the preferences.
 		mPrefs = Preferences.getInstance(mContext);
+		mBlacklist = Blacklist.getInstance(mContext);
 	}
 
 	@Override
@@ -88,8 +85,8 @@ public final class MonitorActivityHandler
 		if (!mPrefs.isUsingBlacklist()) return;
 
 		// If the application is set to be automatically hidden.
-		final boolean mShouldHide = mPrefs.getBoolean(mPackageName, false);
-		if (!mContext.bindService(mServiceIntent, mConnection, 0)) return;
+		final boolean mShouldHide = mBlacklist.contains(mPackageName);
+		if (!mContext.bindService(mPrefs.getServiceIntent(), mConnection, 0)) return;
 	
 		final IStatusBarService mService = mConnection.getService();
 		if (mService == null) return;
@@ -24,12 +24,30 @@ package com.tombarrasso.android.wp7bar;
 
 // Java Packages
 import java.lang.UnsupportedOperationException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.SecretKey;
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 // Android Packages
 import android.content.SharedPreferences;
@@ -38,6 +56,14 @@ import android.content.Context;
 import android.provider.Settings;
 import android.content.ContentProvider;
 
+/**
+ * {@link SharedPreferences} whose values are encrypted. Values are
+ * written as a version prefix followed by the Base64 of the IV and
+ * ciphertext, using AES-GCM where available or else AES-CBC with an
+ * HMAC. The AES key is generated once per install and stored wrapped
+ * with the legacy PBE scheme. Values written before the prefix existed
+ * are PBEWithMD5AndDES and are re-encrypted the first time they are read.
+ */
 public class ObscuredSharedPreferences implements SharedPreferences
 {
     protected static final String UTF8 = "UTF-8";
@@ -48,112 +74,444 @@ public class ObscuredSharedPreferences implements SharedPreferences
     private static final char[] SEKRIT = ("Bunny:Dragon.Canyon-Weasel").toCharArray();
 
 
+    private static final String LEGACY_ALGORITHM = "PBEWithMD5AndDES";
+    private static final int ITERATIONS = 20;
+
+    // Prefixes of the versioned format, ':' is not in the
+    // Base64 alphabet so they never collide with legacy values.
+    protected static final String FORMAT_GCM = "2g:",
+                                  FORMAT_CBC = "2c:";
+
+    // Key under which the wrapped per-install secret is stored.
+    protected static final String KEY_SECRET = "__obscured_secret__";
+
+    private static final String AES = "AES",
+                                GCM = "AES/GCM/NoPadding",
+                                CBC = "AES/CBC/PKCS5Padding",
+                                HMAC = "HmacSHA256";
+    private static final int GCM_IV_LENGTH = 12,
+                             CBC_IV_LENGTH = 16,
+                             MAC_LENGTH = 32,
+                             SECRET_LENGTH = 32;
+
+    // getAll() decrypts on several threads once there are this many values.
+    private static final int PARALLEL_THRESHOLD = 32,
+                             MAX_THREADS = 4;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // Every write holds this so they are written one at a time. A
+    // commit() writes on the caller's thread, so that listeners are
+    // called there, apply() and re-encryption write on the writer.
+    private static final Object writeLock = new Object();
+    private static volatile Thread writerThread;
+    private static final AtomicInteger pendingApplies = new AtomicInteger();
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "ObscuredSharedPreferences");
+            writerThread = thread;
+            return thread;
+        }
+    });
+
+    // Shared by every getAll(), created on first use.
+    private static ExecutorService decoders;
+    private static Boolean gcmSupported;
+
+    // The legacy key only depends on SEKRIT, so it is shared by all instances.
+    private static SecretKey legacyKey;
+
+    // Ciphers are not thread-safe, so each thread gets its own.
+    private static final ThreadLocal<Cipher> legacyCiphers = new ThreadLocal<Cipher>(),
+                                             gcmCiphers = new ThreadLocal<Cipher>(),
+                                             cbcCiphers = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
     protected SharedPreferences delegate;
     protected Context context;
+    private PBEParameterSpec parameters;
+
+    // Derived from the per-install secret, and its stored form.
+    private volatile SecretKey aesKey, macKey;
+    private String storedSecret;
+
+    // Optional cache of decrypted values, keyed by ciphertext.
+    private final LinkedHashMap<String, String> cache;
 
     public ObscuredSharedPreferences(Context context, SharedPreferences delegate) {
+        this(context, delegate, 0);
+    }
+
+    /**
+     * @param cacheSize The number of decrypted values to keep in
+     * memory, least recently used first out. Zero disables caching.
+     */
+    public ObscuredSharedPreferences(Context context, SharedPreferences delegate, final int cacheSize) {
         this.delegate = delegate;
         this.context = context;
+        this.cache = (cacheSize <= 0) ? null :
+            new LinkedHashMap<String, String>(cacheSize, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > cacheSize;
+                }
+            };
     }
 
+    /**
+     * Stages plain text values and only encrypts the final value
+     * of each key, all in one pass, when committed. Commits, whether
+     * from {@link #commit()} or {@link #apply()}, are written in order,
+     * one at a time. {@link #commit()} writes on the calling thread.
+     */
     public class Editor implements SharedPreferences.Editor {
-        protected SharedPreferences.Editor delegate;
+        // Marks a staged removal, compared by identity.
+        private final String REMOVED = new String();
+
+        protected final LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+        protected boolean cleared;
 
         public Editor() {
-            this.delegate = ObscuredSharedPreferences.this.delegate.edit();                    
         }
 
         @Override
         public Editor putBoolean(String key, boolean value) {
-            delegate.putString(key, encrypt(Boolean.toString(value)));
-            return this;
+            return stage(key, Boolean.toString(value));
         }
 
         @Override
         public Editor putFloat(String key, float value) {
-            delegate.putString(key, encrypt(Float.toString(value)));
-            return this;
+            return stage(key, Float.toString(value));
         }
 
         @Override
         public Editor putInt(String key, int value) {
-            delegate.putString(key, encrypt(Integer.toString(value)));
-            return this;
+            return stage(key, Integer.toString(value));
         }
 
         @Override
         public Editor putLong(String key, long value) {
-            delegate.putString(key, encrypt(Long.toString(value)));
-            return this;
+            return stage(key, Long.toString(value));
         }
 
         @Override
         public Editor putString(String key, String value) {
-            delegate.putString(key, encrypt(value));
-            return this;
+            // Null was always stored as an empty value.
+            return stage(key, (value != null) ? value : "");
         }
 
         @Override
         public Editor clear() {
-            delegate.clear();
+            synchronized (pending) {
+                cleared = true;
+            }
             return this;
         }
 
         @Override
-        public boolean commit() {
-            return delegate.commit();
+        public Editor remove(String s) {
+            return stage(s, REMOVED);
         }
 
-        @Override
-        public Editor remove(String s) {
-            delegate.remove(s);
+        private Editor stage(String key, String value) {
+            synchronized (pending) {
+                pending.put(key, value);
+            }
             return this;
         }
+
+        @Override
+        public boolean commit() {
+            final Callable<Boolean> write = takeWrite();
+
+            // Already writing, ie. from a listener or the writer,
+            // waiting on the writer here would never return.
+            if (Thread.holdsLock(writeLock) || Thread.currentThread() == writerThread)
+                return write(write);
+
+            // Let earlier calls to apply() land first.
+            if (pendingApplies.get() > 0) {
+                try {
+                    writer.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                        }
+                    }).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+
+            return write(write);
+        }
+
+        /**
+         * Like {@link #commit()} but returns immediately, values are
+         * encrypted and written in the background. Until then getters
+         * still return the previous values.
+         */
+        public void apply() {
+            final Callable<Boolean> write = takeWrite();
+            pendingApplies.incrementAndGet();
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(write);
+                    } finally {
+                        pendingApplies.decrementAndGet();
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return A write of everything staged so far, after which
+         * this editor is empty again and may be reused.
+         */
+        private Callable<Boolean> takeWrite() {
+            final LinkedHashMap<String, String> values;
+            final boolean clear;
+            synchronized (pending) {
+                values = new LinkedHashMap<String, String>(pending);
+                clear = cleared;
+                pending.clear();
+                cleared = false;
+            }
+
+            return new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    // Encrypt with the secret that is stored, should
+                    // another instance have stored one first.
+                    if (!clear && !adoptSecret()) return Boolean.FALSE;
+
+                    final SharedPreferences.Editor editor = delegate.edit();
+                    if (clear) editor.clear();
+
+                    for (Map.Entry<String, String> entry : values.entrySet()) {
+                        if (entry.getValue() == REMOVED) editor.remove(entry.getKey());
+                        else editor.putString(entry.getKey(), encrypt(entry.getValue()));
+                    }
+
+                    // Keep the secret, values are still written with it.
+                    putSecret(editor, clear);
+                    return Boolean.valueOf(editor.commit());
+                }
+            };
+        }
     }
 
     public Editor edit() {
         return new Editor();
     }
 
+    /**
+     * Runs a write while holding {@link #writeLock}.
+     */
+    private static boolean write(Callable<Boolean> write) {
+        synchronized (writeLock) {
+            try {
+                return write.call().booleanValue();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
 
+    /**
+     * @return Every decrypted value, as Strings since their
+     * type is not stored. Use {@link #getSnapshot()} to read
+     * them with their type.
+     */
     @Override
     public Map<String, ?> getAll() {
-        throw new UnsupportedOperationException(); // left as an exercise to the reader
+        return getSnapshot().getAll();
+    }
+
+    /**
+     * Decrypts every value at once. The key is set up a single time
+     * and large maps are split across cores. Legacy values are
+     * re-encrypted in the background with a single commit. Values that cannot be
+     * decrypted, ie. not written through this class, are left out. If
+     * interrupted the interrupt is kept and a RuntimeException thrown,
+     * rather than returning a partial snapshot.
+     */
+    public Snapshot getSnapshot() {
+        final Map<String, ?> all = delegate.getAll();
+        final ArrayList<String> keys = new ArrayList<String>(all.size());
+        final ArrayList<String> values = new ArrayList<String>(all.size());
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            if (KEY_SECRET.equals(entry.getKey()) || !(entry.getValue() instanceof String)) continue;
+            keys.add(entry.getKey());
+            values.add((String) entry.getValue());
+        }
+
+        try {
+            loadSecret();
+        } catch( Exception e ) {
+            throw new RuntimeException(e);
+        }
+
+        final int count = values.size();
+        final String[] plain = new String[count];
+        final int threads = (count < PARALLEL_THRESHOLD) ? 1 :
+            Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+
+        if (threads == 1) {
+            decryptRange(values, plain, 0, count);
+        } else {
+            final ExecutorService pool = getDecoders();
+            final ArrayList<Future<?>> chunks = new ArrayList<Future<?>>(threads);
+            final int chunk = (count + threads - 1) / threads;
+            for (int i = 0; i < count; i += chunk) {
+                final int start = i, end = Math.min(count, i + chunk);
+                chunks.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        decryptRange(values, plain, start, end);
+                    }
+                }));
+            }
+
+            // Never hand out a snapshot that is missing values.
+            try {
+                for (Future<?> f : chunks) f.get();
+            } catch (InterruptedException e) {
+                for (Future<?> f : chunks) f.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        final HashMap<String, String> result = new HashMap<String, String>(count);
+        final ArrayList<String> legacyKeys = new ArrayList<String>(),
+                                legacyValues = new ArrayList<String>(),
+                                legacyPlain = new ArrayList<String>();
+        for (int i = 0; i < count; ++i) {
+            if (plain[i] == null) continue;
+            result.put(keys.get(i), plain[i]);
+            if (isLegacy(values.get(i))) {
+                legacyKeys.add(keys.get(i));
+                legacyValues.add(values.get(i));
+                legacyPlain.add(plain[i]);
+            }
+        }
+        if (!legacyKeys.isEmpty()) reencrypt(legacyKeys, legacyValues, legacyPlain);
+
+        return new Snapshot(result);
+    }
+
+    /**
+     * @return The pool getAll() decrypts on. Idle threads exit after
+     * a while, and when every thread is busy the caller decrypts.
+     */
+    private static synchronized ExecutorService getDecoders() {
+        if (decoders == null) {
+            final int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+            decoders = new ThreadPoolExecutor(0, threads, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return decoders;
+    }
+
+    private void decryptRange(ArrayList<String> values, String[] plain, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            try {
+                plain[i] = decrypt(values.get(i));
+            } catch (RuntimeException e) {
+                plain[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Immutable set of decrypted values, read with the same
+     * typed getters as {@link SharedPreferences}.
+     */
+    public static final class Snapshot {
+        private final Map<String, String> values;
+
+        private Snapshot(Map<String, String> values) {
+            this.values = Collections.unmodifiableMap(values);
+        }
+
+        public Map<String, String> getAll() {
+            return values;
+        }
+
+        public boolean getBoolean(String key, boolean defValue) {
+            final String v = values.get(key);
+            return v!=null ? Boolean.parseBoolean(v) : defValue;
+        }
+
+        public float getFloat(String key, float defValue) {
+            final String v = values.get(key);
+            return v!=null ? Float.parseFloat(v) : defValue;
+        }
+
+        public int getInt(String key, int defValue) {
+            final String v = values.get(key);
+            return v!=null ? Integer.parseInt(v) : defValue;
+        }
+
+        public long getLong(String key, long defValue) {
+            final String v = values.get(key);
+            return v!=null ? Long.parseLong(v) : defValue;
+        }
+
+        public String getString(String key, String defValue) {
+            final String v = values.get(key);
+            return v != null ? v : defValue;
+        }
+
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
     }
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
         final String v = delegate.getString(key, null);
-        return v!=null ? Boolean.parseBoolean(decrypt(v)) : defValue;
+        return v!=null ? Boolean.parseBoolean(decrypt(key, v)) : defValue;
     }
 
     @Override
     public float getFloat(String key, float defValue) {
         final String v = delegate.getString(key, null);
-        return v!=null ? Float.parseFloat(decrypt(v)) : defValue;
+        return v!=null ? Float.parseFloat(decrypt(key, v)) : defValue;
     }
 
     @Override
     public int getInt(String key, int defValue) {
         final String v = delegate.getString(key, null);
-        return v!=null ? Integer.parseInt(decrypt(v)) : defValue;
+        return v!=null ? Integer.parseInt(decrypt(key, v)) : defValue;
     }
 
     @Override
     public long getLong(String key, long defValue) {
         final String v = delegate.getString(key, null);
-        return v!=null ? Long.parseLong(decrypt(v)) : defValue;
+        return v!=null ? Long.parseLong(decrypt(key, v)) : defValue;
     }
 
     @Override
     public String getString(String key, String defValue) {
         final String v = delegate.getString(key, null);
-        return v != null ? decrypt(v) : defValue;
+        return v != null ? decrypt(key, v) : defValue;
     }
 
     @Override
     public boolean contains(String s) {
-        return delegate.contains(s);
+        return !KEY_SECRET.equals(s) && delegate.contains(s);
     }
 
     @Override
@@ -173,11 +531,20 @@ public class ObscuredSharedPreferences implements SharedPreferences
 
         try {
             final byte[] bytes = value!=null ? value.getBytes(UTF8) : new byte[0];
-            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-            SecretKey key = keyFactory.generateSecret(new PBEKeySpec(SEKRIT));
-            Cipher pbeCipher = Cipher.getInstance("PBEWithMD5AndDES");
-            pbeCipher.init(Cipher.ENCRYPT_MODE, key, new PBEParameterSpec(Settings.Secure.getString(context.getContentResolver(),Settings.System.ANDROID_ID).getBytes(UTF8), 20));
-            return new String(Base64.encode(pbeCipher.doFinal(bytes), Base64.NO_WRAP),UTF8);
+            loadSecret();
+
+            if (isGcmSupported()) {
+                final byte[] iv = newIv(GCM_IV_LENGTH);
+                final Cipher cipher = getCipher(gcmCiphers, GCM);
+                cipher.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv));
+                return FORMAT_GCM + Base64.encodeToString(concat(iv, cipher.doFinal(bytes), null), Base64.NO_WRAP);
+            }
+
+            final byte[] iv = newIv(CBC_IV_LENGTH);
+            final Cipher cipher = getCipher(cbcCiphers, CBC);
+            cipher.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv));
+            final byte[] encrypted = cipher.doFinal(bytes);
+            return FORMAT_CBC + Base64.encodeToString(concat(iv, encrypted, sign(iv, encrypted, 0, encrypted.length)), Base64.NO_WRAP);
 
         } catch( Exception e ) {
             throw new RuntimeException(e);
@@ -186,17 +553,292 @@ public class ObscuredSharedPreferences implements SharedPreferences
     }
 
     protected String decrypt(String value){
+        if (value != null && cache != null) {
+            synchronized (cache) {
+                final String cached = cache.get(value);
+                if (cached != null) return cached;
+            }
+        }
+
         try {
-            final byte[] bytes = value!=null ? Base64.decode(value,Base64.DEFAULT) : new byte[0];
-            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-            SecretKey key = keyFactory.generateSecret(new PBEKeySpec(SEKRIT));
-            Cipher pbeCipher = Cipher.getInstance("PBEWithMD5AndDES");
-            pbeCipher.init(Cipher.DECRYPT_MODE, key, new PBEParameterSpec(Settings.Secure.getString(context.getContentResolver(),Settings.System.ANDROID_ID).getBytes(UTF8), 20));
-            return new String(pbeCipher.doFinal(bytes),UTF8);
+            final String plain;
+            if (value != null && value.startsWith(FORMAT_GCM)) {
+                loadSecret();
+                final byte[] bytes = Base64.decode(value.substring(FORMAT_GCM.length()), Base64.DEFAULT);
+                final Cipher cipher = getCipher(gcmCiphers, GCM);
+                cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(bytes, 0, GCM_IV_LENGTH));
+                plain = new String(cipher.doFinal(bytes, GCM_IV_LENGTH, bytes.length - GCM_IV_LENGTH),UTF8);
+            } else if (value != null && value.startsWith(FORMAT_CBC)) {
+                loadSecret();
+                final byte[] bytes = Base64.decode(value.substring(FORMAT_CBC.length()), Base64.DEFAULT);
+                final int length = bytes.length - CBC_IV_LENGTH - MAC_LENGTH;
+                if (length < 0 || !verify(bytes, length))
+                    throw new SecurityException("Value has been tampered with.");
+                final Cipher cipher = getCipher(cbcCiphers, CBC);
+                cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(bytes, 0, CBC_IV_LENGTH));
+                plain = new String(cipher.doFinal(bytes, CBC_IV_LENGTH, length),UTF8);
+            } else {
+                plain = decryptLegacy(value);
+            }
+
+            if (value != null && cache != null) {
+                synchronized (cache) {
+                    cache.put(value, plain);
+                }
+            }
+            return plain;
 
         } catch( Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Decrypts the value stored under key, re-encrypting it in
+     * the current format first if it was written in the legacy one.
+     */
+    protected String decrypt(String key, String value) {
+        final String plain = decrypt(value);
+        if (isLegacy(value)) {
+            final ArrayList<String> keys = new ArrayList<String>(1),
+                                    values = new ArrayList<String>(1),
+                                    plains = new ArrayList<String>(1);
+            keys.add(key);
+            values.add(value);
+            plains.add(plain);
+            reencrypt(keys, values, plains);
+        }
+        return plain;
+    }
+
+    /**
+     * Re-encrypts legacy values in the background with a single
+     * commit, in order with other writes. A value is skipped if it
+     * was changed in the meantime.
+     */
+    private void reencrypt(final ArrayList<String> keys, final ArrayList<String> values,
+                           final ArrayList<String> plain) {
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (writeLock) {
+                    if (!adoptSecret()) return;
+
+                    final SharedPreferences.Editor editor = delegate.edit();
+                    for (int i = 0, e = keys.size(); i < e; ++i) {
+                        if (values.get(i).equals(delegate.getString(keys.get(i), null)))
+                            editor.putString(keys.get(i), encrypt(plain.get(i)));
+                    }
+                    putSecret(editor, false);
+                    editor.commit();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return True if the value predates the versioned format.
+     */
+    protected static boolean isLegacy(String value) {
+        return value != null && !value.startsWith(FORMAT_GCM) && !value.startsWith(FORMAT_CBC);
+    }
+
+    protected String encryptLegacy(String value) throws Exception {
+        final byte[] bytes = value!=null ? value.getBytes(UTF8) : new byte[0];
+        final Cipher pbeCipher = getLegacyCipher(Cipher.ENCRYPT_MODE);
+        return new String(Base64.encode(pbeCipher.doFinal(bytes), Base64.NO_WRAP),UTF8);
+    }
+
+    protected String decryptLegacy(String value) throws Exception {
+        final byte[] bytes = value!=null ? Base64.decode(value,Base64.DEFAULT) : new byte[0];
+        final Cipher pbeCipher = getLegacyCipher(Cipher.DECRYPT_MODE);
+        return new String(pbeCipher.doFinal(bytes),UTF8);
+    }
+
+    /**
+     * Loads the per-install secret, generating it the first time.
+     * A new secret is only stored by {@link #putSecret}, along with
+     * the first values encrypted with it, so that it is written in
+     * order with them. It is wrapped with the legacy scheme so
+     * it is never stored in plain text.
+     */
+    private synchronized void loadSecret() throws Exception {
+        if (aesKey != null) return;
+
+        String stored = delegate.getString(KEY_SECRET, null);
+        byte[] secret = unwrapSecret(stored);
+
+        if (secret == null) {
+            secret = new byte[SECRET_LENGTH];
+            random.nextBytes(secret);
+            stored = encryptLegacy(Base64.encodeToString(secret, Base64.NO_WRAP));
+        }
+
+        setSecret(stored, secret);
+    }
+
+    /**
+     * Switches to the stored secret if another instance, or process,
+     * stored a different one since this one was loaded, so values
+     * written now can be read by both. Only call this while holding
+     * {@link #writeLock}, before encrypting.
+     *
+     * @return False if a secret is stored but can not be read, in
+     * which case nothing should be written.
+     */
+    private synchronized boolean adoptSecret() {
+        try {
+            loadSecret();
+            final String stored = delegate.getString(KEY_SECRET, null);
+            if (stored == null || stored.equals(storedSecret)) return true;
+
+            final byte[] secret = unwrapSecret(stored);
+            if (secret == null) return false;
+            setSecret(stored, secret);
+            return true;
+        } catch( Exception e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return The secret in its stored form, or null if
+     * there is none or it can not be read.
+     */
+    private byte[] unwrapSecret(String stored) {
+        if (stored == null) return null;
+        try {
+            final byte[] secret = Base64.decode(decryptLegacy(stored), Base64.DEFAULT);
+            return (secret.length == SECRET_LENGTH) ? secret : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private synchronized void setSecret(String stored, byte[] secret) {
+        storedSecret = stored;
+        aesKey = new SecretKeySpec(secret, 0, SECRET_LENGTH / 2, AES);
+        macKey = new SecretKeySpec(secret, SECRET_LENGTH / 2, SECRET_LENGTH / 2, HMAC);
+    }
+
+    /**
+     * Adds the secret to a write if none is stored yet, or always
+     * if the write clears everything. A secret stored by someone
+     * else is never replaced, see {@link #adoptSecret()}. Only call
+     * this while holding {@link #writeLock}.
+     */
+    private void putSecret(SharedPreferences.Editor editor, boolean force) {
+        try {
+            loadSecret();
+        } catch( Exception e ) {
+            throw new RuntimeException(e);
+        }
+
+        if (force || !delegate.contains(KEY_SECRET))
+            editor.putString(KEY_SECRET, getStoredSecret());
+    }
+
+    private synchronized String getStoredSecret() {
+        return storedSecret;
+    }
+
+    /**
+     * @return True if AES-GCM is available, older devices
+     * fall back to AES-CBC with an HMAC.
+     */
+    private static synchronized boolean isGcmSupported() {
+        if (gcmSupported == null) {
+            boolean supported;
+            try {
+                final Cipher cipher = Cipher.getInstance(GCM);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[16], AES),
+                    new IvParameterSpec(new byte[GCM_IV_LENGTH]));
+                supported = true;
+            } catch (Exception e) {
+                supported = false;
+            }
+            gcmSupported = supported;
+        }
+        return gcmSupported;
+    }
+
+    private static byte[] newIv(int length) {
+        final byte[] iv = new byte[length];
+        random.nextBytes(iv);
+        return iv;
+    }
+
+    private static byte[] concat(byte[] iv, byte[] encrypted, byte[] mac) {
+        final int macLength = (mac != null) ? mac.length : 0;
+        final byte[] bytes = new byte[iv.length + encrypted.length + macLength];
+        System.arraycopy(iv, 0, bytes, 0, iv.length);
+        System.arraycopy(encrypted, 0, bytes, iv.length, encrypted.length);
+        if (mac != null) System.arraycopy(mac, 0, bytes, iv.length + encrypted.length, macLength);
+        return bytes;
+    }
+
+    private byte[] sign(byte[] iv, byte[] encrypted, int offset, int length) throws Exception {
+        Mac mac = macs.get();
+        if (mac == null) {
+            mac = Mac.getInstance(HMAC);
+            macs.set(mac);
+        }
+        mac.init(macKey);
+        mac.update(iv, 0, CBC_IV_LENGTH);
+        mac.update(encrypted, offset, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * Compares the HMAC in constant time.
+     */
+    private boolean verify(byte[] bytes, int length) throws Exception {
+        final byte[] expected = sign(bytes, bytes, CBC_IV_LENGTH, length);
+        int diff = 0;
+        for (int i = 0; i < MAC_LENGTH; ++i)
+            diff |= expected[i] ^ bytes[CBC_IV_LENGTH + length + i];
+        return diff == 0;
+    }
+
+    private static Cipher getCipher(ThreadLocal<Cipher> local, String transformation) throws Exception {
+        Cipher cipher = local.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            local.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * @return This thread's legacy {@link Cipher}, initialized for the
+     * given mode with the key and salt that are only derived once.
+     */
+    protected Cipher getLegacyCipher(int mode) throws Exception {
+        final Cipher pbeCipher = getCipher(legacyCiphers, LEGACY_ALGORITHM);
+        pbeCipher.init(mode, getLegacyKey(), getParameters());
+        return pbeCipher;
+    }
+
+    /**
+     * @return The key derived from SEKRIT, which never changes.
+     */
+    private static synchronized SecretKey getLegacyKey() throws Exception {
+        if (legacyKey == null) {
+            final SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(LEGACY_ALGORITHM);
+            legacyKey = keyFactory.generateSecret(new PBEKeySpec(SEKRIT));
+        }
+        return legacyKey;
+    }
+
+    /**
+     * @return The salt, from ANDROID_ID, looked up only once.
+     */
+    private synchronized PBEParameterSpec getParameters() throws Exception {
+        if (parameters == null) {
+            final String androidId = Settings.Secure.getString(context.getContentResolver(),Settings.System.ANDROID_ID);
+            parameters = new PBEParameterSpec(androidId.getBytes(UTF8), ITERATIONS);
+        }
+        return parameters;
+    }
+
 }
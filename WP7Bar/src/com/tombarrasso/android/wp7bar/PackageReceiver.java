@@ -0,0 +1,106 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * PackageReceiver.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Android Packages
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+// Java Packages
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This receiver is notified when an application is installed,
+ * removed, or replaced. It updates the single affected entry
+ * of {@link AppCatalog} and drops its icons from {@link IconCache},
+ * on a background thread so the main thread is never blocked.
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-05-2011
+ * @version		1.0
+ * @category	{@link BroadcastReceiver}
+ */
+
+public class PackageReceiver extends BroadcastReceiver
+{
+	public static final String TAG = PackageReceiver.class.getSimpleName(),
+							   PACKAGE = PackageReceiver.class.getPackage().getName();
+
+	// Work is done in order, off the main thread.
+	private static final ExecutorService mWorker =
+		Executors.newSingleThreadExecutor();
+
+	@Override
+	public void onReceive(Context context, Intent intent)
+	{
+		// Get be safe.
+		if (intent == null) return;
+		final String mAction = intent.getAction();
+		final Uri mData = intent.getData();
+		if (mAction == null || mData == null) return;
+
+		final String mPackage = mData.getSchemeSpecificPart();
+		if (mPackage == null) return;
+
+		// A replacement sends REMOVED then ADDED, so
+		// only handle the REPLACED broadcast for it.
+		final boolean mReplacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+		// Created here, IconCache needs a Looper.
+		final AppCatalog mCatalog = AppCatalog.getInstance(context);
+		final IconCache mIcons = IconCache.getInstance(context);
+
+		mWorker.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				update(mCatalog, mIcons, mAction, mPackage, mReplacing);
+			}
+		});
+	}
+
+	/**
+	 * Update the catalog and icons for a package. The catalog is
+	 * skipped if it was never built, it will include the package.
+	 */
+	private static final void update(AppCatalog mCatalog, IconCache mIcons,
+		String mAction, String mPackage, boolean mReplacing)
+	{
+		final boolean mExists = mCatalog.exists();
+
+		if (mAction.equals(Intent.ACTION_PACKAGE_REMOVED))
+		{
+			if (mExists && !mReplacing) mCatalog.remove(mPackage);
+			mIcons.remove(mPackage);
+		}
+		else if (mAction.equals(Intent.ACTION_PACKAGE_ADDED))
+		{
+			if (mExists && !mReplacing) mCatalog.update(mPackage);
+		}
+		else if (mAction.equals(Intent.ACTION_PACKAGE_REPLACED) ||
+				 mAction.equals(Intent.ACTION_PACKAGE_CHANGED))
+		{
+			if (mExists) mCatalog.update(mPackage);
+			mIcons.remove(mPackage);
+		}
+	}
+}
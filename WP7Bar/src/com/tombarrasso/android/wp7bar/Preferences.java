@@ -27,17 +27,30 @@ import android.preference.PreferenceManager;
 import android.graphics.Color;
 import android.app.ActivityManager;
 import android.os.Handler;
+import android.os.Process;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ComponentName;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.ApplicationInfo;
 import android.graphics.drawable.Drawable;
+import android.util.Log;
 
 // Java Packages
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.List;
+import java.util.Locale;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // UI Packages
 import com.tombarrasso.android.wp7ui.statusbar.StatusBarView;
@@ -55,10 +68,19 @@ import com.tombarrasso.android.wp7ui.statusbar.StatusBarView;
  * <ul>
  *	<li>Branching out to include {@link PackageManager} shortcuts to retrieve a list of applications, packages, etc.</li>
  * </ul>
+ * <b>Version 1.03</b>
+ * <ul>
+ *	<li>{@link isServiceRunning} reads the sticky enabled broadcast and checks the pid it carries instead of scanning every running service.</li>
+ *	<li>{@link getApps} uses a single launcher query and no longer loads icons.</li>
+ *	<li>{@link getApps} resolves labels in parallel and can stream partial results.</li>
+ *	<li>Settings are migrated once by {@link SettingsMigration} instead of wrapped in {@link TypeClearingPreferences}, in the main process only.</li>
+ *	<li>Changes are published through {@link SettingsProvider} for {@link SettingsChannel}.</li>
+ *	<li>{@link AppComparator} compares cached {@link CollationKey}s for the current locale.</li>
+ * </ul>
  *
  * @author		Thomas James Barrasso <contact @ tombarrasso.com>
  * @since		10-13-2011
- * @version		1.02
+ * @version		1.03
  * @category	Static Utility
  */
 
@@ -94,7 +116,8 @@ public final class Preferences
 								KEY_ICON_BATTERY_PERCENT = "icon_battery_percent",
 								KEY_ICON_CARRIER = "icon_carrier",
 								KEY_ICON_RINGER = "icon_ringer",
-								KEY_DROP_DURATION = "service_drop_duration";
+								KEY_DROP_DURATION = "service_drop_duration",
+								KEY_LOCAL = "service_local";
 
 	// ArrayList containing the keys to all icons.
 	private static final ArrayList<String> mIcons = new ArrayList<String>();
@@ -112,6 +135,21 @@ public final class Preferences
 		mIcons.add(KEY_ICON_TIME);
 	};
 
+	// ArrayList containing the keys to all settings.
+	private static final ArrayList<String> mKeys = new ArrayList<String>();
+	static {
+		mKeys.add(KEY_BOOT);
+		mKeys.add(KEY_ICON);
+		mKeys.add(KEY_BACKGROUND);
+		mKeys.add(KEY_EXPAND);
+		mKeys.add(KEY_DROP);
+		mKeys.add(KEY_BLACKLIST);
+		mKeys.add(KEY_SWIPE);
+		mKeys.add(KEY_DROP_DURATION);
+		mKeys.add(KEY_LOCAL);
+		mKeys.addAll(mIcons);
+	};
+
 	/**
 	 * @return An {@link ArrayList} containing the String
 	 * keys for the settings of whether or not each icon
@@ -130,32 +168,48 @@ public final class Preferences
 	};
 
 	/**
-	 * Information on a given application.
+	 * Information on a given application. This is deliberately
+	 * lightweight; the icon is not held and is only loaded
+	 * on demand with {@link #loadIcon}.
 	 */
 	public static final class AppInfo
 	{
 		private final String mName,
 							 mPackageName,
+							 mActivityName,
 							 mVersionName;
 
 		private final int mVersionCode;
-		private final Drawable mIcon;
 
-		public AppInfo(String mName, String mPackageName, String mVersionName, Drawable mIcon, int mVersionCode)
+		// Sort key of the name, and the locale it is for.
+		private CollationKey mKey;
+		private Locale mKeyLocale;
+
+		public AppInfo(String mName, String mPackageName, String mActivityName, String mVersionName, int mVersionCode)
 		{
 			this.mVersionName = mVersionName;
-			this.mIcon = mIcon;
 			this.mName = mName;
 			this.mPackageName = mPackageName;
+			this.mActivityName = mActivityName;
 			this.mVersionCode = mVersionCode;
 		}
 
 		/**
-		 * @return The icon of this application.
+		 * @return The icon of this application's launcher
+		 * {@link Activity}, or the default icon if none exists.
 		 */
-		public Drawable getIcon()
+		public Drawable loadIcon(PackageManager mPackageManager)
 		{
-			return mIcon;
+			Drawable mIcon = null;
+			try
+			{
+				mIcon = mPackageManager.getActivityIcon(
+					new ComponentName(mPackageName, mActivityName));
+			}
+			catch (PackageManager.NameNotFoundException e) {}
+
+			return (mIcon != null) ? mIcon :
+				mPackageManager.getDefaultActivityIcon();
 		}
 
 		/**
@@ -182,6 +236,14 @@ public final class Preferences
 			return mPackageName;
 		}
 
+		/**
+		 * @return The class name of the launcher {@link Activity}.
+		 */
+		public String getActivityName()
+		{
+			return mActivityName;
+		}
+
 		/**
 		 * @return The name of this application.
 		 */
@@ -189,6 +251,41 @@ public final class Preferences
 		{
 			return mName;
 		}
+
+		/**
+		 * @return The {@link CollationKey} of the name for the current
+		 * locale. It is computed once, and again if the locale changes.
+		 */
+		public synchronized CollationKey getCollationKey()
+		{
+			final Locale mLocale = Locale.getDefault();
+			if (mKey == null || !mLocale.equals(mKeyLocale))
+			{
+				mKey = getCollationKey(mName, mLocale);
+				mKeyLocale = mLocale;
+			}
+
+			return mKey;
+		}
+	}
+
+	// Collator for the locale last asked for.
+	private static Collator mCollator;
+	private static Locale mCollatorLocale;
+
+	/**
+	 * @return A {@link CollationKey} for a name in the given locale.
+	 * {@link Collator} is not thread-safe so one is shared under a lock.
+	 */
+	private static final synchronized CollationKey getCollationKey(String mName, Locale mLocale)
+	{
+		if (mCollator == null || !mLocale.equals(mCollatorLocale))
+		{
+			mCollator = Collator.getInstance(mLocale);
+			mCollatorLocale = mLocale;
+		}
+
+		return mCollator.getCollationKey((mName == null) ? "" : mName);
 	}
 
 	/**
@@ -229,50 +326,148 @@ public final class Preferences
 	}
 
 	/**
-	 * {@link Comparator} for {@link AppInfo} objects.
+	 * {@link Comparator} for {@link AppInfo} objects, by name in the
+	 * order of the current locale and then by package so that the
+	 * order is total. Names are only compared through their cached
+	 * {@link CollationKey}s.
 	 */
 	public static final class AppComparator implements java.util.Comparator<AppInfo>
 	{
 		public int compare(AppInfo app1, AppInfo app2)
 		{
-			return (int) Math.signum(
-				(float) app1.getName()
-				.compareToIgnoreCase(app2.getName()));
+			final int mOrder = app1.getCollationKey()
+				.compareTo(app2.getCollationKey());
+			if (mOrder != 0) return mOrder;
+			return app1.getPackageName().compareTo(app2.getPackageName());
 		}
 	}
 
+	/**
+	 * Listener notified with partial results while
+	 * {@link getApps} is still resolving labels.
+	 */
+	public static interface OnAppsLoadedListener
+	{
+		/**
+		 * Called from a worker thread with a chunk of
+		 * applications, sorted if requested.
+		 */
+		public void onAppsLoaded(ArrayList<AppInfo> mApps);
+	}
+
+	// Labels are resolved in chunks of this many applications.
+	private static final int CHUNK_SIZE = 16;
+
+	// Upper bound on threads used to resolve labels.
+	private static final int MAX_THREADS = 4;
+
 	/**
 	 * @param alphabetical True if you want the list of
 	 * applications sorted alphabetically.
 	 * 
 	 * @return An {@link ArrayList} of installed applications
-	 * containing all {@link AppInfo}.
+	 * containing all {@link AppInfo}. There is one entry per
+	 * package with a launcher {@link Activity}. This costs a
+	 * single launcher query and a single package query no matter
+	 * how many applications are installed, and no icons are loaded.
+	 * Null is returned if the list could not be completed.
 	 */
 	public final ArrayList<AppInfo> getApps(boolean alphabetical)
 	{
+		return getApps(alphabetical, null);
+	}
+
+	/**
+	 * @see #getApps(boolean)
+	 *
+	 * Labels are resolved in parallel on a small pool of threads.
+	 * Each finished chunk is handed to the listener, if any, before
+	 * the complete list is returned. If interrupted, or if any chunk
+	 * failed, null is returned rather than a partial list.
+	 */
+	public final ArrayList<AppInfo> getApps(final boolean alphabetical,
+		final OnAppsLoadedListener mListener)
+	{
+		final List<ResolveInfo> mActivities =
+			mPackageManager.queryIntentActivities(mAppIntent, 0);
+
+		// Version information for every package, in one call.
 		final List<PackageInfo> mPackages =
 			mPackageManager.getInstalledPackages(0);
-
-		final ArrayList<AppInfo> mApps = new ArrayList<AppInfo>();
-		
-		// Get information on all applications.
+		final HashMap<String, PackageInfo> mVersions =
+			new HashMap<String, PackageInfo>(mPackages.size());
 		for (PackageInfo mPackage : mPackages)
+			mVersions.put(mPackage.packageName, mPackage);
+
+		// Group launcher Activities by package,
+		// keeping the first one for each.
+		final ArrayList<ResolveInfo> mUnique = new ArrayList<ResolveInfo>(mActivities.size());
+		final HashSet<String> mSeen = new HashSet<String>(mActivities.size());
+		for (ResolveInfo mActivity : mActivities)
+			if (mSeen.add(mActivity.activityInfo.packageName))
+				mUnique.add(mActivity);
+
+		final int mCount = mUnique.size();
+		final AppInfo[] mResults = new AppInfo[mCount];
+		final int mThreads = Math.max(1, Math.min(MAX_THREADS,
+			Runtime.getRuntime().availableProcessors()));
+		final ExecutorService mPool = Executors.newFixedThreadPool(mThreads);
+		final ArrayList<Future<?>> mChunks = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < mCount; i += CHUNK_SIZE)
 		{
-			final ArrayList<ResolveInfo> mActivities = findActivitiesForPackage(mPackage.packageName);
-
-			// Get all Activities for a launcher.
-			for (ResolveInfo mActivity : mActivities)
+			final int mStart = i, mEnd = Math.min(mCount, i + CHUNK_SIZE);
+			mChunks.add(mPool.submit(new Runnable()
 			{
-				// Determine the application's icon,
-				// or use a default if none exists.
-				Drawable mIcon = mActivity.loadIcon(mPackageManager);
-				if (mIcon == null) mIcon =
-					mPackageManager.getDefaultActivityIcon();
-
-				// Add an item to the list.
-				mApps.add(new AppInfo(mActivity.loadLabel(mPackageManager).toString(), mPackage.packageName, mPackage.versionName,  mIcon, mPackage.versionCode));
-			}
+				@Override
+				public void run()
+				{
+					final ArrayList<AppInfo> mChunk = new ArrayList<AppInfo>(mEnd - mStart);
+					for (int j = mStart; j < mEnd; ++j)
+					{
+						final ResolveInfo mActivity = mUnique.get(j);
+						final String mPackageName = mActivity.activityInfo.packageName;
+						final PackageInfo mPackage = mVersions.get(mPackageName);
+						mResults[j] = new AppInfo(
+							mActivity.loadLabel(mPackageManager).toString(),
+							mPackageName, mActivity.activityInfo.name,
+							((mPackage == null) ? null : mPackage.versionName),
+							((mPackage == null) ? 0 : mPackage.versionCode));
+						mChunk.add(mResults[j]);
+					}
+
+					if (mListener == null) return;
+					if (alphabetical)
+						Collections.sort(mChunk, new AppComparator());
+					mListener.onAppsLoaded(mChunk);
+				}
+			}));
+		}
+
+		// Wait for every chunk to finish, any that did not
+		// would leave the list incomplete.
+		mPool.shutdown();
+		try
+		{
+			for (Future<?> mChunk : mChunks)
+				mChunk.get();
 		}
+		catch (InterruptedException e)
+		{
+			mPool.shutdownNow();
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			Log.w(TAG, "Could not load every application.", e.getCause());
+			mPool.shutdownNow();
+			return null;
+		}
+
+		final ArrayList<AppInfo> mApps = new ArrayList<AppInfo>(mCount);
+		for (AppInfo mApp : mResults)
+			mApps.add(mApp);
 
 		if (alphabetical)
 			// Order alphabetically from A - Z.
@@ -282,17 +477,48 @@ public final class Preferences
 	}
 
 	/**
-	 * @return An {@link ArrayList} containing all {@link Activity}s that
-	 * have an intent to be launched via the launcher.
+	 * @return The name of every package with a launcher
+	 * {@link Activity}, from a single launcher query.
 	 */
-	private final ArrayList<ResolveInfo> findActivitiesForPackage(String packageName)
+	public final HashSet<String> getLauncherPackages()
 	{
-        final Intent mIntent = new Intent(mAppIntent);
-        mIntent.setPackage(packageName);
+		final List<ResolveInfo> mActivities =
+			mPackageManager.queryIntentActivities(mAppIntent, 0);
+		final HashSet<String> mPackages = new HashSet<String>(mActivities.size());
+		for (ResolveInfo mActivity : mActivities)
+			mPackages.add(mActivity.activityInfo.packageName);
+		return mPackages;
+	}
 
-        final ArrayList<ResolveInfo> mApps = new ArrayList<ResolveInfo>(mPackageManager.queryIntentActivities(mIntent, 0));
-        return (mApps != null) ? mApps : new ArrayList<ResolveInfo>();
-    }
+	/**
+	 * @return The {@link AppInfo} for a single package, or null
+	 * if it does not exist or has no launcher {@link Activity}.
+	 * This is used to update a single entry of {@link AppCatalog}.
+	 */
+	public final AppInfo getApp(String packageName)
+	{
+		final Intent mIntent = new Intent(mAppIntent);
+		mIntent.setPackage(packageName);
+
+		final List<ResolveInfo> mActivities =
+			mPackageManager.queryIntentActivities(mIntent, 0);
+		if (mActivities == null || mActivities.isEmpty()) return null;
+
+		PackageInfo mPackage = null;
+		try
+		{
+			mPackage = mPackageManager.getPackageInfo(packageName, 0);
+		}
+		catch (PackageManager.NameNotFoundException e)
+		{
+			return null;
+		}
+
+		final ResolveInfo mActivity = mActivities.get(0);
+		return new AppInfo(mActivity.loadLabel(mPackageManager).toString(),
+			packageName, mActivity.activityInfo.name,
+			mPackage.versionName, mPackage.versionCode);
+	}
 
 	/**
 	 * @return An instance to {@link ActivityManager}.
@@ -312,6 +538,31 @@ public final class Preferences
 		this.mContext = mContext;
 		mActivityManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
 		mPackageManager = mContext.getPackageManager();
+
+		// Upgrade old settings once, rather than on every read.
+		// Only the main process writes them, a second writer in
+		// the remote process could race it on the same file.
+		if (isMainProcess())
+			SettingsMigration.migrate(mContext, getPrefs());
+	}
+
+	/**
+	 * @return True if this is the application's main process,
+	 * as opposed to the one {@link BarService} runs in. If the
+	 * process can not be found it is assumed to be the main one.
+	 */
+	private final boolean isMainProcess()
+	{
+		final List<ActivityManager.RunningAppProcessInfo> mProcesses =
+			mActivityManager.getRunningAppProcesses();
+		if (mProcesses == null) return true;
+
+		final int mPid = Process.myPid();
+		for (ActivityManager.RunningAppProcessInfo mProcess : mProcesses)
+			if (mProcess.pid == mPid)
+				return mContext.getPackageName().equals(mProcess.processName);
+
+		return true;
 	}
 
 	/**
@@ -327,13 +578,70 @@ public final class Preferences
 	}
 
 	/**
-	 * @return An {@link ObscuredSharedPreferences} for this
-	 * application to store preferences/ settings.
+	 * @return The {@link SharedPreferences} for this application
+	 * to store preferences/ settings. They have been brought up to
+	 * date by {@link SettingsMigration}, so no type checks are needed.
+	 * Once {@link openChannel} has been called these are served by
+	 * a {@link SettingsChannel} instead.
 	 */
 	private final SharedPreferences getPrefs()
 	{
-		return new TypeClearingPreferences( mContext, 
-			PreferenceManager.getDefaultSharedPreferences(mContext) );
+		if (mChannel != null) return mChannel;
+		return PreferenceManager.getDefaultSharedPreferences(mContext);
+	}
+
+	private SettingsChannel mChannel;
+
+	/**
+	 * Read settings through a {@link SettingsChannel} from now on.
+	 * Call this from a process other than the one settings are
+	 * written from, ie. {@link BarService}, so that changes made
+	 * elsewhere are seen without reloading the settings file.
+	 * Settings are read-only once the channel is open.
+	 */
+	public final void openChannel()
+	{
+		if (mChannel == null)
+			mChannel = new SettingsChannel(mContext, mKeys);
+	}
+
+	/**
+	 * Stop receiving changes through the {@link SettingsChannel}.
+	 */
+	public final void closeChannel()
+	{
+		if (mChannel == null) return;
+		mChannel.close();
+		mChannel = null;
+	}
+
+	/**
+	 * Register a listener notified when a setting changes. In a
+	 * process using {@link openChannel} this includes changes made
+	 * from other processes.
+	 */
+	public final void registerOnSharedPreferenceChangeListener(
+		SharedPreferences.OnSharedPreferenceChangeListener mListener)
+	{
+		getPrefs().registerOnSharedPreferenceChangeListener(mListener);
+	}
+
+	/**
+	 * @see #registerOnSharedPreferenceChangeListener
+	 */
+	public final void unregisterOnSharedPreferenceChangeListener(
+		SharedPreferences.OnSharedPreferenceChangeListener mListener)
+	{
+		getPrefs().unregisterOnSharedPreferenceChangeListener(mListener);
+	}
+
+	/**
+	 * Let other processes know that a setting was changed.
+	 */
+	private final void notifyChanged(String mKey)
+	{
+		mContext.getContentResolver().notifyChange(
+			SettingsProvider.getUri(mKey), null);
 	}
 
 	/**
@@ -344,25 +652,90 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.clear();
 		mEditor.commit();
+		mContext.getContentResolver().notifyChange(SettingsProvider.CONTENT_URI, null);
 	}
 
+	// Matches the sticky broadcast sent while BarService is enabled.
+	private static final IntentFilter mEnabledFilter =
+		new IntentFilter(BarService.ACTION_ENABLED);
+
 	/**
 	 * @return True if the background service is running.
-	 * The default is false.
+	 * The default is false. This is a lookup of the sticky
+	 * {@link BarService#ACTION_ENABLED} broadcast, which {@link BarService}
+	 * replaces with {@link BarService#ACTION_DISABLED} when it is destroyed.
+	 * If its process is killed onDestroy is never called and the
+	 * broadcast stays, so the pid it carries is checked to still be
+	 * the same process. Only a broadcast without one falls back to
+	 * scanning every running service.
 	 */
     public final boolean isServiceRunning()
 	{
+		// Registering a null receiver only returns the current sticky Intent.
+		final Intent mEnabled = mContext.registerReceiver(null, mEnabledFilter);
+		if (mEnabled == null) return false;
+
+		final int mPid = mEnabled.getIntExtra(BarService.EXTRA_PID, 0);
+		final long mStartTime = mEnabled.getLongExtra(BarService.EXTRA_START_TIME, -1);
+		if (mPid > 0 && mStartTime >= 0)
+			return (BarService.getStartTime(mPid) == mStartTime);
+
 		final List<ActivityManager.RunningServiceInfo> mServices =
 			mActivityManager.getRunningServices(Integer.MAX_VALUE);
-		final String mBarService = BarService.PACKAGE + "." + BarService.TAG;
+		if (mServices == null) return false;
 
-		// Check all services to see if ours is running.
+		final String mPackage = mContext.getPackageName(),
+					 mRemote = BarService.class.getName(),
+					 mLocal = LocalBarService.class.getName();
 		for (ActivityManager.RunningServiceInfo mService : mServices)
-        	if (mBarService.equals(mService.service.getClassName()))
-            	return true;
+		{
+			if (!mService.started || !mPackage.equals(mService.service.getPackageName()))
+				continue;
+			final String mClass = mService.service.getClassName();
+			if (mRemote.equals(mClass) || mLocal.equals(mClass))
+				return true;
+		}
+
 		return false;
 	}
 
+	/**
+	 * @return True if {@link BarService} should be hosted in the
+	 * application's process, see {@link LocalBarService}. This uses
+	 * one heap instead of two and calls to it skip binder IPC. The
+	 * default is false.
+	 */
+	public final boolean isServiceLocal()
+	{
+		return getPrefs().getBoolean(KEY_LOCAL, false);
+	}
+
+	/**
+	 * Set whether or not {@link BarService} should be hosted in the
+	 * application's process. Takes effect when it is next started.
+	 */
+	public final void setServiceLocal(boolean local)
+	{
+		final Editor mEditor = getPrefs().edit();
+		mEditor.putBoolean(KEY_LOCAL, local);
+		mEditor.commit();
+		notifyChanged(KEY_LOCAL);
+	}
+
+	/**
+	 * @return An {@link Intent} for the status bar service, either
+	 * {@link BarService} or {@link LocalBarService} based on
+	 * {@link isServiceLocal}.
+	 */
+	public final Intent getServiceIntent()
+	{
+		final Class<?> mClass = (isServiceLocal()) ?
+			LocalBarService.class : BarService.class;
+		final Intent mIntent = new Intent();
+		mIntent.setClassName(PACKAGE, mClass.getName());
+		return mIntent;
+	}
+
 	/**
 	 * @return Get a boolean value with a default.
 	 */
@@ -379,8 +752,22 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putBoolean(mKey, mValue);
 		mEditor.commit();
+		notifyChanged(mKey);
     }
 
+	/**
+	 * @return A bit for each key of {@link getIconKeys},
+	 * in order, which is set if the icon is shown.
+	 */
+	public final int getIconMask()
+	{
+		int mMask = 0;
+		for (int i = 0, e = mIcons.size(); i < e; ++i)
+			if (getBoolean(mIcons.get(i), true))
+				mMask |= (1 << i);
+		return mMask;
+	}
+
 	/**
 	 * @return True if the background service is
 	 * turned on after a boot completion. The
@@ -400,6 +787,7 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putBoolean(KEY_BOOT, boot);
 		mEditor.commit();
+		notifyChanged(KEY_BOOT);
 	}
 
 	/**
@@ -420,6 +808,7 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putInt(KEY_DROP_DURATION, duration);
 		mEditor.commit();
+		notifyChanged(KEY_DROP_DURATION);
 	}
 
 	/**
@@ -441,6 +830,7 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putBoolean(KEY_SWIPE, swipe);
 		mEditor.commit();
+		notifyChanged(KEY_SWIPE);
 	}
 
 	/**
@@ -464,6 +854,7 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putBoolean(KEY_BLACKLIST, use);
 		mEditor.commit();
+		notifyChanged(KEY_BLACKLIST);
 	}
 
 	/**
@@ -475,6 +866,7 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putBoolean(KEY_EXPAND, expand);
 		mEditor.commit();
+		notifyChanged(KEY_EXPAND);
 	}
 
 	/**
@@ -496,6 +888,7 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putBoolean(KEY_DROP, drop);
 		mEditor.commit();
+		notifyChanged(KEY_DROP);
 	}
 
 	/**
@@ -525,6 +918,7 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putInt(KEY_BACKGROUND, color);
 		mEditor.commit();
+		notifyChanged(KEY_BACKGROUND);
 	}
 
 	/**
@@ -544,5 +938,6 @@ public final class Preferences
 		final Editor mEditor = getPrefs().edit();
 		mEditor.putInt(KEY_ICON, color);
 		mEditor.commit();
+		notifyChanged(KEY_ICON);
 	}
 }
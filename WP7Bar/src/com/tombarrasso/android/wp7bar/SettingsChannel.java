@@ -0,0 +1,229 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * SettingsChannel.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Android Packages
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+
+// Java Packages
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only {@link SharedPreferences} for processes other than the
+ * one settings are written from, namely {@link BarService}. All
+ * values are fetched from {@link SettingsProvider} once and kept in
+ * memory. A {@link ContentObserver} per key then fetches only the
+ * value that changed and notifies any registered listeners, so the
+ * settings file is never reloaded and values are never stale.
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-10-2011
+ * @version		1.0
+ * @category	Wrapper
+ */
+
+public final class SettingsChannel implements SharedPreferences
+{
+	public static final String TAG = SettingsChannel.class.getSimpleName(),
+							   PACKAGE = SettingsChannel.class.getPackage().getName();
+
+	private final ContentResolver mResolver;
+	private final Handler mHandler = new Handler();
+	private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+	private final ArrayList<KeyObserver> mObservers = new ArrayList<KeyObserver>();
+	private final ArrayList<OnSharedPreferenceChangeListener> mListeners =
+		new ArrayList<OnSharedPreferenceChangeListener>();
+
+	/**
+	 * Fetch every setting and start observing the given keys.
+	 * This must be created on a thread with a {@link Looper}.
+	 */
+	public SettingsChannel(Context mContext, ArrayList<String> mKeys)
+	{
+		mResolver = mContext.getContentResolver();
+		read(SettingsProvider.CONTENT_URI, null);
+
+		for (String mKey : mKeys)
+		{
+			final KeyObserver mObserver = new KeyObserver(mKey);
+			mResolver.registerContentObserver(
+				SettingsProvider.getUri(mKey), false, mObserver);
+			mObservers.add(mObserver);
+		}
+	}
+
+	/**
+	 * Stop observing changes. Values remain readable.
+	 */
+	public final void close()
+	{
+		for (KeyObserver mObserver : mObservers)
+			mResolver.unregisterContentObserver(mObserver);
+		mObservers.clear();
+	}
+
+	/**
+	 * Observes a single key, so only its value is fetched.
+	 */
+	private final class KeyObserver extends ContentObserver
+	{
+		private final String mKey;
+
+		public KeyObserver(String mKey)
+		{
+			super(mHandler);
+			this.mKey = mKey;
+		}
+
+		@Override
+		public void onChange(boolean selfChange)
+		{
+			read(SettingsProvider.getUri(mKey), mKey);
+
+			for (OnSharedPreferenceChangeListener mListener :
+				new ArrayList<OnSharedPreferenceChangeListener>(mListeners))
+				mListener.onSharedPreferenceChanged(SettingsChannel.this, mKey);
+		}
+	}
+
+	/**
+	 * Query the provider and store the values returned. If a
+	 * single key was asked for and not returned it is removed.
+	 */
+	private final synchronized void read(Uri mUri, String mKey)
+	{
+		final Cursor mCursor = mResolver.query(mUri, null, null, null, null);
+		if (mCursor == null) return;
+
+		try
+		{
+			if (mKey != null) mValues.remove(mKey);
+
+			final int mKeyIndex = mCursor.getColumnIndex(SettingsProvider.COLUMN_KEY),
+					  mTypeIndex = mCursor.getColumnIndex(SettingsProvider.COLUMN_TYPE),
+					  mValueIndex = mCursor.getColumnIndex(SettingsProvider.COLUMN_VALUE);
+
+			while (mCursor.moveToNext())
+			{
+				final String mType = mCursor.getString(mTypeIndex);
+				final String mValue = mCursor.getString(mValueIndex);
+				Object mParsed = mValue;
+
+				if 		(SettingsProvider.TYPE_BOOLEAN.equals(mType))
+					mParsed = Boolean.valueOf(mValue);
+				else if (SettingsProvider.TYPE_INT.equals(mType))
+					mParsed = Integer.valueOf(mValue);
+				else if (SettingsProvider.TYPE_LONG.equals(mType))
+					mParsed = Long.valueOf(mValue);
+				else if (SettingsProvider.TYPE_FLOAT.equals(mType))
+					mParsed = Float.valueOf(mValue);
+
+				mValues.put(mCursor.getString(mKeyIndex), mParsed);
+			}
+		}
+		finally
+		{
+			mCursor.close();
+		}
+	}
+
+	private final synchronized Object get(String mKey)
+	{
+		return mValues.get(mKey);
+	}
+
+	@Override
+	public synchronized Map<String, ?> getAll()
+	{
+		return new HashMap<String, Object>(mValues);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue)
+	{
+		final Object mValue = get(key);
+		return (mValue instanceof Boolean) ? ((Boolean) mValue).booleanValue() : defValue;
+	}
+
+	@Override
+	public float getFloat(String key, float defValue)
+	{
+		final Object mValue = get(key);
+		return (mValue instanceof Float) ? ((Float) mValue).floatValue() : defValue;
+	}
+
+	@Override
+	public int getInt(String key, int defValue)
+	{
+		final Object mValue = get(key);
+		return (mValue instanceof Integer) ? ((Integer) mValue).intValue() : defValue;
+	}
+
+	@Override
+	public long getLong(String key, long defValue)
+	{
+		final Object mValue = get(key);
+		return (mValue instanceof Long) ? ((Long) mValue).longValue() : defValue;
+	}
+
+	@Override
+	public String getString(String key, String defValue)
+	{
+		final Object mValue = get(key);
+		return (mValue instanceof String) ? (String) mValue : defValue;
+	}
+
+	@Override
+	public boolean contains(String key)
+	{
+		return (get(key) != null);
+	}
+
+	/**
+	 * Settings are only written from the main process.
+	 */
+	@Override
+	public SharedPreferences.Editor edit()
+	{
+		throw new UnsupportedOperationException("Settings are read-only in this process.");
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(
+		OnSharedPreferenceChangeListener onSharedPreferenceChangeListener)
+	{
+		if (!mListeners.contains(onSharedPreferenceChangeListener))
+			mListeners.add(onSharedPreferenceChangeListener);
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(
+		OnSharedPreferenceChangeListener onSharedPreferenceChangeListener)
+	{
+		mListeners.remove(onSharedPreferenceChangeListener);
+	}
+}
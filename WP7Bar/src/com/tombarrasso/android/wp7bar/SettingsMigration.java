@@ -0,0 +1,197 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * SettingsMigration.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Android Packages
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.graphics.Color;
+import android.util.Log;
+
+// Java Packages
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Upgrades settings written by a previous version of the application
+ * in place. The schema version is stored alongside the settings and
+ * every value whose type no longer matches is converted in a single
+ * pass with a single commit. Values that cannot be converted are
+ * removed so their default is used. Keys that are not settings
+ * are left alone, except for blacklisted packages which are moved
+ * to their own store. Unlike {@link TypeClearingPreferences}
+ * no other settings are lost, and once migrated reads never need to
+ * guard against a {@link ClassCastException}.
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-08-2011
+ * @version		1.0
+ * @category	Static Utility
+ */
+
+public final class SettingsMigration
+{
+	public static final String TAG = SettingsMigration.class.getSimpleName(),
+							   PACKAGE = SettingsMigration.class.getPackage().getName();
+
+	/**
+	 * Key under which the schema version is stored.
+	 */
+	public static final String KEY_SCHEMA = "schema_version";
+
+	/**
+	 * Current version of the settings schema. Bump this
+	 * and update {@link mTypes} when a type changes.
+	 */
+	public static final int SCHEMA_VERSION = 2;
+
+	// The type each known key is expected to have.
+	private static final HashMap<String, Class<?>> mTypes =
+		new HashMap<String, Class<?>>();
+	static {
+		mTypes.put(Preferences.KEY_BOOT, Boolean.class);
+		mTypes.put(Preferences.KEY_EXPAND, Boolean.class);
+		mTypes.put(Preferences.KEY_DROP, Boolean.class);
+		mTypes.put(Preferences.KEY_BLACKLIST, Boolean.class);
+		mTypes.put(Preferences.KEY_SWIPE, Boolean.class);
+		mTypes.put(Preferences.KEY_ICON, Integer.class);
+		mTypes.put(Preferences.KEY_BACKGROUND, Integer.class);
+		mTypes.put(Preferences.KEY_DROP_DURATION, Integer.class);
+		mTypes.put(Preferences.KEY_LOCAL, Boolean.class);
+		mTypes.put(KEY_SCHEMA, Integer.class);
+		for (String mKey : Preferences.getIconKeys())
+			mTypes.put(mKey, Boolean.class);
+	};
+
+	private SettingsMigration() {}
+
+	/**
+	 * Migrate the settings if they are from an older schema.
+	 * This is cheap when they are already up to date.<br /><br />
+	 * <ul>
+	 *	<li>Schema 1 converts every known key to its expected type.</li>
+	 *	<li>Schema 2 moves blacklisted packages into {@link Blacklist}.</li>
+	 * </ul>
+	 */
+	public static final void migrate(Context mContext, SharedPreferences mPrefs)
+	{
+		final Map<String, ?> mAll = mPrefs.getAll();
+		final Object mStored = mAll.get(KEY_SCHEMA);
+		final int mVersion = (mStored instanceof Integer) ?
+			((Integer) mStored).intValue() : 0;
+		if (mVersion >= SCHEMA_VERSION) return;
+
+		final Editor mEditor = mPrefs.edit();
+		final ArrayList<String> mBlacklisted = new ArrayList<String>();
+		int mConverted = 0;
+
+		for (Map.Entry<String, ?> mEntry : mAll.entrySet())
+		{
+			final String mKey = mEntry.getKey();
+			final Object mValue = mEntry.getValue();
+			final Class<?> mType = mTypes.get(mKey);
+
+			// Blacklisted packages were stored as booleans
+			// keyed by package name, move them out.
+			if (mType == null)
+			{
+				if (mVersion < 2 && mValue instanceof Boolean &&
+					mKey.indexOf('.') > 0)
+				{
+					if (((Boolean) mValue).booleanValue())
+						mBlacklisted.add(mKey);
+					mEditor.remove(mKey);
+				}
+				continue;
+			}
+
+			if (mVersion >= 1 || mType.isInstance(mValue)) continue;
+
+			++mConverted;
+			if (mType == Boolean.class)
+			{
+				final Boolean mBool = toBoolean(mValue);
+				if (mBool == null) mEditor.remove(mKey);
+				else mEditor.putBoolean(mKey, mBool.booleanValue());
+			}
+			else if (mType == Integer.class)
+			{
+				final Integer mInt = toInteger(mValue);
+				if (mInt == null) mEditor.remove(mKey);
+				else mEditor.putInt(mKey, mInt.intValue());
+			}
+		}
+
+		// Write the blacklist first, so nothing is
+		// lost should we be killed in between.
+		if (!mBlacklisted.isEmpty())
+			Blacklist.getInstance(mContext).setAll(mBlacklisted, true);
+
+		mEditor.putInt(KEY_SCHEMA, SCHEMA_VERSION);
+		mEditor.commit();
+
+		Log.i(TAG, "Migrated settings to schema " + SCHEMA_VERSION +
+			", " + mConverted + " value(s) converted, " +
+			mBlacklisted.size() + " package(s) moved to the blacklist.");
+	}
+
+	/**
+	 * @return The value as a {@link Boolean}, or null.
+	 */
+	private static final Boolean toBoolean(Object mValue)
+	{
+		if (mValue instanceof Number)
+			return Boolean.valueOf(((Number) mValue).intValue() != 0);
+		if (mValue instanceof String)
+		{
+			final String mStr = ((String) mValue).trim();
+			if ("true".equalsIgnoreCase(mStr) || "1".equals(mStr))
+				return Boolean.TRUE;
+			if ("false".equalsIgnoreCase(mStr) || "0".equals(mStr))
+				return Boolean.FALSE;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The value as an {@link Integer}, or null. Strings
+	 * may be decimal numbers or colors such as "#FF000000".
+	 */
+	private static final Integer toInteger(Object mValue)
+	{
+		if (mValue instanceof Number)
+			return Integer.valueOf(((Number) mValue).intValue());
+		if (mValue instanceof Boolean)
+			return Integer.valueOf(((Boolean) mValue).booleanValue() ? 1 : 0);
+		if (mValue instanceof String)
+		{
+			final String mStr = ((String) mValue).trim();
+			try
+			{
+				if (mStr.startsWith("#"))
+					return Integer.valueOf(Color.parseColor(mStr));
+				return Integer.valueOf(mStr);
+			}
+			catch (IllegalArgumentException e) {}
+		}
+		return null;
+	}
+}
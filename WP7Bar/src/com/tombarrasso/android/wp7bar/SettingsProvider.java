@@ -0,0 +1,153 @@
+package com.tombarrasso.android.wp7bar;
+
+/*
+ * SettingsProvider.java
+ *
+ * Copyright (C) 2011 Thomas James Barrasso
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Android Packages
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.content.SharedPreferences;
+
+// Java Packages
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only {@link ContentProvider} that serves settings from the
+ * main process, where they are written, to {@link BarService} which
+ * runs in its own process. {@link Preferences} notifies the URI of
+ * a key whenever it is changed so that {@link SettingsChannel} can
+ * fetch just that value rather than reloading the settings file.<br /><br />
+ * <ul>
+ *	<li><code>content://AUTHORITY/settings</code> returns every setting.</li>
+ *	<li><code>content://AUTHORITY/settings/KEY</code> returns a single setting.</li>
+ * </ul>
+ *
+ * @author		Thomas James Barrasso <contact @ tombarrasso.com>
+ * @since		11-10-2011
+ * @version		1.0
+ * @category	{@link ContentProvider}
+ */
+
+public final class SettingsProvider extends ContentProvider
+{
+	public static final String TAG = SettingsProvider.class.getSimpleName(),
+							   PACKAGE = SettingsProvider.class.getPackage().getName();
+
+	public static final String AUTHORITY = PACKAGE + ".settings";
+	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/settings");
+
+	// Columns of every row returned.
+	public static final String COLUMN_KEY = "key",
+							   COLUMN_TYPE = "type",
+							   COLUMN_VALUE = "value";
+	private static final String[] COLUMNS =
+		{ COLUMN_KEY, COLUMN_TYPE, COLUMN_VALUE };
+
+	// Values of COLUMN_TYPE.
+	public static final String TYPE_BOOLEAN = "b",
+							   TYPE_INT = "i",
+							   TYPE_LONG = "l",
+							   TYPE_FLOAT = "f",
+							   TYPE_STRING = "s";
+
+	/**
+	 * @return The URI for a single setting.
+	 */
+	public static final Uri getUri(String mKey)
+	{
+		return Uri.withAppendedPath(CONTENT_URI, mKey);
+	}
+
+	@Override
+	public boolean onCreate()
+	{
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection,
+		String[] selectionArgs, String sortOrder)
+	{
+		final SharedPreferences mPrefs =
+			PreferenceManager.getDefaultSharedPreferences(getContext());
+		final Map<String, ?> mAll = mPrefs.getAll();
+		final MatrixCursor mCursor = new MatrixCursor(COLUMNS);
+
+		// Either one key or all of them.
+		final List<String> mSegments = uri.getPathSegments();
+		if (mSegments.size() > 1)
+		{
+			final String mKey = mSegments.get(1);
+			addRow(mCursor, mKey, mAll.get(mKey));
+		}
+		else
+		{
+			for (Map.Entry<String, ?> mEntry : mAll.entrySet())
+				addRow(mCursor, mEntry.getKey(), mEntry.getValue());
+		}
+
+		return mCursor;
+	}
+
+	/**
+	 * Add a row for a value, nothing is added for null
+	 * so that a missing key yields an empty cursor.
+	 */
+	private static final void addRow(MatrixCursor mCursor, String mKey, Object mValue)
+	{
+		String mType = null;
+		if 		(mValue instanceof Boolean) mType = TYPE_BOOLEAN;
+		else if (mValue instanceof Integer) mType = TYPE_INT;
+		else if (mValue instanceof Long) 	mType = TYPE_LONG;
+		else if (mValue instanceof Float) 	mType = TYPE_FLOAT;
+		else if (mValue instanceof String) 	mType = TYPE_STRING;
+		if (mType == null) return;
+
+		mCursor.addRow(new Object[] { mKey, mType, mValue.toString() });
+	}
+
+	@Override
+	public String getType(Uri uri)
+	{
+		return null;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values)
+	{
+		throw new UnsupportedOperationException("Settings are read-only.");
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection,
+		String[] selectionArgs)
+	{
+		throw new UnsupportedOperationException("Settings are read-only.");
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs)
+	{
+		throw new UnsupportedOperationException("Settings are read-only.");
+	}
+}
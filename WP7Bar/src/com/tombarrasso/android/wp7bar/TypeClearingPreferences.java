@@ -37,7 +37,8 @@ import android.preference.PreferenceManager;
  * force close of the application. This occurs both for getting and
  * setting preferences. This is especially useful when upgrading
  * settings from a previous model and such an exception is thrown
- * often.
+ * often. {@link Preferences} now upgrades settings in place using
+ * {@link SettingsMigration} and no longer relies on this class.
  *
  * @author		Thomas James Barrasso <contact @ tombarrasso.com>
  * @since		10-26-2011